@@ -29,17 +29,35 @@ package net.javagaming.java4k.launcher;
 import net.javagaming.java4k.launcher.progress.ParentProgressController;
 import net.javagaming.java4k.launcher.progress.ProgressState;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
+ * The progress is kept in plain counters rather than a new
+ * {@link ProgressState} for each update.  The owning worker writes them,
+ * and the progress panel reads them as it draws; a sequence number that is
+ * odd while a write is under way lets the reader take a consistent
+ * snapshot without a lock.  The {@link ProgressState} is only built for
+ * that snapshot.
+ *
  * @author Groboclown
  */
 public class ChildProgressController implements ParentProgressController {
     private final ParentProgressController parent;
     private final int parentRange;
-    private ProgressState state;
+    private final AtomicInteger sequence = new AtomicInteger();
+    private volatile boolean hasState = false;
+    private volatile String labelText = "";
+    private volatile boolean indeterminate = true;
+    private volatile int min;
+    private volatile int max;
+    private volatile int value;
     private boolean hasChild = false;
     private boolean completed = false;
     private ProgressState beforeChild;
     private int childRange;
+    private String sentLabelText;
+    private boolean sentIndeterminate;
+    private int sentValue = -1;
 
     public ChildProgressController(ParentProgressController parent, int parentRange) {
         this.parent = parent;
@@ -55,34 +73,44 @@ public class ChildProgressController implements ParentProgressController {
         } catch (Exception e) {
             e.printStackTrace();
         }
-        setProgressState(new ProgressState(message));
+        validateNoChild();
+        setState(message, true, 0, 0, 0);
     }
 
     @Override
     public void advance(int min, int max, int value) {
-        setProgressState(new ProgressState(min, max, value));
+        validateNoChild();
+        setState("", false, min, max, value);
     }
 
     @Override
     public void advanceBy(int valueIncr) {
-        setProgressState(new ProgressState(state, valueIncr));
+        validateNoChild();
+        if (hasState) {
+            setState(labelText, false, min, max,
+                    Math.max(min, Math.min(max, value + valueIncr)));
+        } else {
+            setState("", false, Math.min(0, valueIncr),
+                    Math.max(0, valueIncr), valueIncr);
+        }
     }
 
     @Override
     public void advanceTo(int value) {
-        setProgressState(new ProgressState(state.getLabelText(),
-                state.getMinimum(), state.getMaximum(), value));
+        validateNoChild();
+        setState(labelText, false, min, max, value);
     }
 
     @Override
     public void completed() {
         completed = true;
         if (parent != null) {
-            if (state == null) {
-                state = new ProgressState(0, 1, 1);
+            if (hasState) {
+                parent.childCompleted(labelText, indeterminate,
+                        toParentRange());
+            } else {
+                parent.childCompleted("", false, parentRange);
             }
-            parent.childCompleted(state.getLabelText(), state.isIndeterminate(),
-                    toParentRange(state));
         }
     }
 
@@ -96,13 +124,9 @@ public class ChildProgressController implements ParentProgressController {
 
     @Override
     public void setProgressState(ProgressState p) {
-        validate();
-        if (hasChild) {
-            throw new IllegalStateException(
-                    "cannot advance with an active child");
-        }
-        this.state = p;
-        sendState(p);
+        validateNoChild();
+        setState(p.getLabelText(), p.isIndeterminate(), p.getMinimum(),
+                p.getMaximum(), p.getValue());
     }
 
     @Override
@@ -111,24 +135,27 @@ public class ChildProgressController implements ParentProgressController {
         if (hasChild) {
             throw new IllegalStateException("already have a child");
         }
+        int newMin = min;
+        int newMax = max;
+        int newValue = value;
         boolean updatedState = false;
-        if (state == null) {
-            state = new ProgressState("");
-        }
-        if (state.isIndeterminate()) {
+        if (indeterminate) {
             updatedState = true;
-            state = new ProgressState(state.getLabelText(), 0, parentRange, 0);
+            newMin = 0;
+            newMax = parentRange;
+            newValue = 0;
         }
-        if (state.getValue() + parentRange > state.getMaximum()) {
+        if (newValue + parentRange > newMax) {
             updatedState = true;
-            state = new ProgressState(state.getLabelText(), 0,
-                    state.getValue() + parentRange, state.getValue());
+            newMin = 0;
+            newMax = newValue + parentRange;
         }
 
         if (updatedState) {
-            setProgressState(state);
+            setState(labelText, false, newMin, newMax, newValue);
         }
-        beforeChild = state;
+        beforeChild = new ProgressState(labelText, false, newMin, newMax,
+                newValue);
         hasChild = true;
         childRange = parentRange;
         return new ChildProgressController(this, parentRange);
@@ -142,47 +169,125 @@ public class ChildProgressController implements ParentProgressController {
             throw new IllegalStateException("no existing child");
         }
 
-
         if (indeterminant) {
-            this.state = new ProgressState(labelText);
+            setState(labelText, true, 0, 0, 0);
         } else {
             value = Math.min(value, childRange);
-            this.state = new ProgressState(this.state,
-                    beforeChild.getValue() + value);
+            setState(this.labelText, false, beforeChild.getMinimum(),
+                    beforeChild.getMaximum(), beforeChild.getValue() + value);
         }
-        sendState(this.state);
     }
 
     @Override
     public void childCompleted(String labelText, boolean indeterminant,
             int value) {
         advanceChild(labelText, indeterminant, value);
-        if (indeterminant && ! beforeChild.isIndeterminate()) {
-            // don't use the child's state
-            state = beforeChild;
-        }
+        // an indeterminate child doesn't leave its label behind
+        String label = indeterminant ? beforeChild.getLabelText()
+                : this.labelText;
         hasChild = false;
-        advanceTo(beforeChild.getValue() + childRange);
+        setState(label, false, beforeChild.getMinimum(),
+                beforeChild.getMaximum(),
+                beforeChild.getValue() + childRange);
         beforeChild = null;
         childRange = -1;
     }
 
 
-    protected void sendState(ProgressState p) {
-        // convert the p state into within the parent range
+    /**
+     * Called by the owning thread after each change to the state.  By
+     * default, this passes the change up to the parent, unless the parent
+     * would see no difference.
+     */
+    protected void sendState() {
+        // convert the state into within the parent range
         if (parent != null) {
-            if (p.isIndeterminate()) {
-                parent.advanceChild(p.getLabelText(), p.isIndeterminate(),
-                        toParentRange(p));
+            int parentValue = toParentRange();
+            if (parentValue != sentValue || indeterminate != sentIndeterminate
+                    || ! labelText.equals(sentLabelText)) {
+                sentLabelText = labelText;
+                sentIndeterminate = indeterminate;
+                sentValue = parentValue;
+                parent.advanceChild(labelText, indeterminate, parentValue);
             }
         }
     }
 
-    private int toParentRange(ProgressState p) {
-        if (p.getMaximum() == 0) {
+    /**
+     * @return a consistent snapshot of the current state, or null if
+     *      nothing has been reported yet.  Safe to call from any thread.
+     */
+    protected ProgressState getProgressState() {
+        while (true) {
+            int seq = sequence.get();
+            if ((seq & 1) == 0) {
+                boolean snapHasState = hasState;
+                String snapLabel = labelText;
+                boolean snapIndeterminate = indeterminate;
+                int snapMin = min;
+                int snapMax = max;
+                int snapValue = value;
+                if (sequence.get() == seq) {
+                    if (! snapHasState) {
+                        return null;
+                    }
+                    return new ProgressState(snapLabel, snapIndeterminate,
+                            snapMin, snapMax, snapValue);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+
+    private void setState(String labelText, boolean indeterminate,
+            int min, int max, int value) {
+        // Only the owning thread normally writes, so this claims the
+        // sequence on the first try.
+        int seq = sequence.get();
+        while ((seq & 1) != 0 || ! sequence.compareAndSet(seq, seq + 1)) {
+            Thread.yield();
+            seq = sequence.get();
+        }
+        // a volatile write costs more than the read, and most updates only
+        // change the value.
+        if (labelText == null) {
+            labelText = "";
+        }
+        if (! labelText.equals(this.labelText)) {
+            this.labelText = labelText;
+        }
+        if (this.indeterminate != indeterminate) {
+            this.indeterminate = indeterminate;
+        }
+        if (this.min != min) {
+            this.min = min;
+        }
+        if (this.max != max) {
+            this.max = max;
+        }
+        this.value = value;
+        if (! hasState) {
+            this.hasState = true;
+        }
+        sequence.set(seq + 2);
+        sendState();
+    }
+
+    private int toParentRange() {
+        int range = max - min;
+        if (range <= 0) {
             return 0;
         }
-        return ((p.getValue() - p.getMinimum()) * parentRange) / p.getMaximum();
+        return (int) (((long) (value - min) * parentRange) / range);
+    }
+
+    private void validateNoChild() {
+        validate();
+        if (hasChild) {
+            throw new IllegalStateException(
+                    "cannot advance with an active child");
+        }
     }
 
     private void validate() {
@@ -190,8 +295,4 @@ public class ChildProgressController implements ParentProgressController {
             throw new IllegalStateException("already completed");
         }
     }
-
-    protected ProgressState getProgressState() {
-        return state;
-    }
 }
@@ -27,6 +27,7 @@
 package net.javagaming.java4k.launcher;
 
 import net.javagaming.java4k.launcher.applet.HtmlAppletDetailResourceReader;
+import net.javagaming.java4k.launcher.cache.CancelledException;
 import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.progress.AbstractHostedResourceConsumer;
 import net.javagaming.java4k.launcher.progress.ProgressWorker;
@@ -113,6 +114,9 @@ public class DefaultGameDetailListResourceReader
             throw new IllegalStateException("unknown source type " +
                     source.getSourceType());
         }
+        if (controller.isCancelled()) {
+            throw new CancelledException(source.getName());
+        }
         reader.processLoadedResource(r, controller, source);
     }
 }
@@ -0,0 +1,483 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs downloads in parallel, while limiting how many connections are open
+ * to any single host.  Each host has its own FIFO queue for each
+ * {@link WorkPriority}, and hosts with waiting work take turns for the
+ * free threads, so one slow or dead host can only ever tie up its own
+ * share of the threads.  Waiting work of a higher priority always goes
+ * first.
+ * <p/>
+ * Work may carry a supersession key, such as the panel it loads into.  A
+ * newer request with the same key drops the older one if it hasn't
+ * started yet.
+ * <p/>
+ * The same scheduling is used for the background workers, with all of them
+ * in a single queue.
+ * <p/>
+ * On Java 21 and later, each task can instead run in its own virtual
+ * thread.  Then only the per-host limit holds work back, not the number of
+ * threads.  The virtual threads are created through reflection, so this
+ * still builds and runs on older Java versions.
+ *
+ * @author Groboclown
+ */
+class DownloadScheduler {
+    private static final WorkPriority[] PRIORITIES = WorkPriority.values();
+
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Runnable pendingChanged;
+    private final QueueStats stats;
+    private final String[] statsQueues;
+    private final Object sync = new Object();
+    private final Map<String, HostQueue> hosts =
+            new HashMap<String, HostQueue>();
+    private final LinkedList<HostQueue> ready = new LinkedList<HostQueue>();
+    private final Map<Object, Task> waitingByKey = new HashMap<Object, Task>();
+    private final int[] pending = new int[PRIORITIES.length];
+    private int running = 0;
+    private boolean shutdown = false;
+
+
+    /**
+     *
+     * @param name name for the threads and the queue wait statistics
+     * @param maxConcurrent most downloads running at once
+     * @param maxPerHost most downloads running at once for a single host
+     * @param pendingChanged called, outside of any lock, whenever the
+     *      pending count changes.
+     * @param stats told how long work waits in the queues
+     */
+    DownloadScheduler(String name, int maxConcurrent, int maxPerHost,
+            Runnable pendingChanged, QueueStats stats) {
+        this(name, maxConcurrent, maxPerHost, pendingChanged, stats, false);
+    }
+
+
+    /**
+     *
+     * @param name name for the threads and the queue wait statistics
+     * @param maxConcurrent most downloads running at once, if not using
+     *      virtual threads
+     * @param maxPerHost most downloads running at once for a single host
+     * @param pendingChanged called, outside of any lock, whenever the
+     *      pending count changes.
+     * @param stats told how long work waits in the queues
+     * @param useVirtual run each task in its own virtual thread, if the
+     *      runtime has them.
+     */
+    DownloadScheduler(String name, int maxConcurrent, int maxPerHost,
+            Runnable pendingChanged, QueueStats stats, boolean useVirtual) {
+        this(name, maxConcurrent, maxPerHost, pendingChanged, stats,
+                useVirtual ? newVirtualThreadExecutor(name) : null, true);
+    }
+
+
+    /**
+     *
+     * @param name name for the queue wait statistics
+     * @param maxConcurrent most downloads handed to the executor at once
+     * @param maxPerHost most downloads running at once for a single host
+     * @param pendingChanged called, outside of any lock, whenever the
+     *      pending count changes.
+     * @param stats told how long work waits in the queues
+     * @param executor runs the downloads.
+     */
+    DownloadScheduler(String name, int maxConcurrent, int maxPerHost,
+            Runnable pendingChanged, QueueStats stats,
+            ExecutorService executor) {
+        this(name, maxConcurrent, maxPerHost, pendingChanged, stats, executor,
+                false);
+    }
+
+
+    private DownloadScheduler(final String name, int maxConcurrent,
+            int maxPerHost, Runnable pendingChanged, QueueStats stats,
+            ExecutorService executor, boolean virtual) {
+        this.virtual = virtual && executor != null;
+        if (this.virtual) {
+            maxConcurrent = Integer.MAX_VALUE;
+        }
+        this.name = name;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerHost = Math.max(1, maxPerHost);
+        this.pendingChanged = pendingChanged;
+        this.stats = stats;
+        this.statsQueues = new String[PRIORITIES.length];
+        for (WorkPriority priority: PRIORITIES) {
+            statsQueues[priority.ordinal()] = name.toLowerCase() + '.' +
+                    priority.name().toLowerCase();
+        }
+        if (executor != null) {
+            this.executor = executor;
+        } else {
+            this.executor = Executors.newFixedThreadPool(this.maxConcurrent,
+                    new ThreadFactory() {
+                        private int count = 0;
+
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, name + " " + (++count));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+    }
+
+
+    /**
+     *
+     * @return true if the runtime has virtual threads (Java 21 or later).
+     */
+    static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Java 21's
+     * {@code Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " ", 1).factory())}.
+     *
+     * @return the executor, or null if the runtime doesn't have virtual
+     *      threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + " ", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass
+                    .getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            System.err.println("Could not create virtual threads: " + e);
+            return null;
+        } catch (InvocationTargetException e) {
+            System.err.println("Could not create virtual threads: " +
+                    e.getCause());
+            return null;
+        }
+    }
+
+
+    /**
+     *
+     * @return true if each task runs in its own virtual thread.
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+
+    /**
+     * Queue the task behind any other work of the same priority for the
+     * same host.
+     *
+     * @param host the host the task connects to
+     * @param priority how soon the task should run
+     * @param supersedeKey if not null, any waiting task submitted with an
+     *      equal key is dropped.
+     * @param task the download work
+     * @param superseded if not null, run in place of the task if it is
+     *      dropped for a newer one.
+     */
+    void submit(String host, WorkPriority priority, Object supersedeKey,
+            Runnable task, Runnable superseded) {
+        if (host == null) {
+            host = "";
+        }
+        Task dropped = null;
+        synchronized (sync) {
+            if (shutdown) {
+                return;
+            }
+            if (supersedeKey != null) {
+                dropped = waitingByKey.remove(supersedeKey);
+                if (dropped != null) {
+                    drop(dropped);
+                }
+            }
+
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                queue = new HostQueue(host);
+                hosts.put(host, queue);
+            }
+            Task added = new Task(queue, priority, supersedeKey, task,
+                    superseded);
+            queue.tasks.get(priority.ordinal()).add(added);
+            ++pending[priority.ordinal()];
+            if (supersedeKey != null) {
+                waitingByKey.put(supersedeKey, added);
+            }
+            if (! queue.isReady && queue.running < maxPerHost) {
+                queue.isReady = true;
+                ready.add(queue);
+            }
+            dispatch();
+        }
+        if (dropped != null) {
+            stats.recordSuperseded();
+            if (dropped.superseded != null) {
+                dropped.superseded.run();
+            }
+        }
+        pendingChanged.run();
+    }
+
+
+    /**
+     *
+     * @return the number of downloads either waiting or running.
+     */
+    int getPending() {
+        return getPending(PRIORITIES[PRIORITIES.length - 1]);
+    }
+
+
+    /**
+     *
+     * @param lowest the lowest priority to count.
+     * @return the number of downloads of at least that priority either
+     *      waiting or running.
+     */
+    int getPending(WorkPriority lowest) {
+        int ret = 0;
+        synchronized (sync) {
+            for (int i = 0; i <= lowest.ordinal(); ++i) {
+                ret += pending[i];
+            }
+        }
+        return ret;
+    }
+
+
+    void shutdownNow() {
+        synchronized (sync) {
+            shutdown = true;
+            hosts.clear();
+            ready.clear();
+            waitingByKey.clear();
+        }
+        executor.shutdownNow();
+    }
+
+
+    boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+
+    /**
+     * Hand out free threads to the waiting hosts in turn, highest priority
+     * first.  Must be called while holding the sync lock.
+     */
+    private void dispatch() {
+        while (! shutdown && running < maxConcurrent && ! ready.isEmpty()) {
+            final Task task = nextTask();
+            HostQueue queue = task.queue;
+            if (task.key != null) {
+                waitingByKey.remove(task.key);
+            }
+            ++queue.running;
+            ++running;
+            if (queue.hasTasks() && queue.running < maxPerHost) {
+                // back of the line, so other hosts get a turn
+                ready.addLast(queue);
+            } else {
+                queue.isReady = false;
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        stats.recordQueueWait(
+                                statsQueues[task.priority.ordinal()],
+                                System.nanoTime() - task.queued);
+                        try {
+                            task.task.run();
+                        } finally {
+                            finished(task);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the executor was shut down some other way, so the task
+                // won't run
+                --queue.running;
+                --running;
+                --pending[task.priority.ordinal()];
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Take the first task of the highest waiting priority, from the first
+     * ready host that has one.  Every ready host has a waiting task.  Must
+     * be called while holding the sync lock.
+     */
+    private Task nextTask() {
+        for (WorkPriority priority: PRIORITIES) {
+            Iterator<HostQueue> iter = ready.iterator();
+            while (iter.hasNext()) {
+                HostQueue queue = iter.next();
+                LinkedList<Task> tasks = queue.tasks.get(priority.ordinal());
+                if (! tasks.isEmpty()) {
+                    iter.remove();
+                    return tasks.removeFirst();
+                }
+            }
+        }
+        throw new IllegalStateException("ready host with no tasks");
+    }
+
+
+    /**
+     * Take a waiting task out of its queue.  Must be called while holding
+     * the sync lock.
+     */
+    private void drop(Task task) {
+        HostQueue queue = task.queue;
+        queue.tasks.get(task.priority.ordinal()).remove(task);
+        --pending[task.priority.ordinal()];
+        if (! queue.hasTasks()) {
+            if (queue.isReady) {
+                queue.isReady = false;
+                ready.remove(queue);
+            }
+            if (queue.running <= 0) {
+                hosts.remove(queue.host);
+            }
+        }
+    }
+
+
+    private void finished(Task task) {
+        HostQueue queue = task.queue;
+        synchronized (sync) {
+            --queue.running;
+            --running;
+            --pending[task.priority.ordinal()];
+            if (! queue.hasTasks()) {
+                if (queue.running <= 0) {
+                    hosts.remove(queue.host);
+                }
+            } else if (! queue.isReady) {
+                queue.isReady = true;
+                ready.add(queue);
+            }
+            dispatch();
+        }
+        pendingChanged.run();
+    }
+
+
+    private static class Task {
+        final HostQueue queue;
+        final WorkPriority priority;
+        final Object key;
+        final Runnable task;
+        final Runnable superseded;
+        final long queued = System.nanoTime();
+
+        Task(HostQueue queue, WorkPriority priority, Object key,
+                Runnable task, Runnable superseded) {
+            this.queue = queue;
+            this.priority = priority;
+            this.key = key;
+            this.task = task;
+            this.superseded = superseded;
+        }
+    }
+
+
+    private static class HostQueue {
+        final String host;
+        final List<LinkedList<Task>> tasks =
+                new ArrayList<LinkedList<Task>>(PRIORITIES.length);
+        int running = 0;
+        boolean isReady = false;
+
+        HostQueue(String host) {
+            this.host = host;
+            for (int i = 0; i < PRIORITIES.length; ++i) {
+                tasks.add(new LinkedList<Task>());
+            }
+        }
+
+        boolean hasTasks() {
+            for (LinkedList<Task> list: tasks) {
+                if (! list.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -26,6 +26,8 @@
  */
 package net.javagaming.java4k.launcher;
 
+import net.javagaming.java4k.launcher.cache.Cache;
+import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.progress.ProgressController;
 import net.javagaming.java4k.launcher.progress.ProgressWorker;
 
@@ -171,6 +173,7 @@ public class GameManager {
                     activeGameRunner = null;
                     activeGameConfig = null;
                     activeGameDetail = null;
+                    setCachePinned(oldDesc, false);
                     fireGameStateStopped(oldDesc);
                 } else {
                     launcherManager.getErrorMessageManager().gameError(
@@ -217,6 +220,7 @@ public class GameManager {
                 gameStartPending = true;
                 activeGameRunner = newRunner;
                 activeGameDetail = newGame;
+                setCachePinned(newGame, true);
                 activeGameConfig = newConfig;
                 try {
                     newRunner.start(null, true);
@@ -251,6 +255,24 @@ public class GameManager {
     }
 
 
+    /**
+     * Keep the running game's files in the cache, so they can't be evicted
+     * while it's being played.
+     */
+    private static void setCachePinned(GameDetail game, boolean pin) {
+        Resource[] resources = {
+                game.getDetailsSource(), game.getJar(), game.getDocumentBase()
+        };
+        for (Resource r: resources) {
+            if (pin) {
+                Cache.getInstance().pin(r);
+            } else {
+                Cache.getInstance().unpin(r);
+            }
+        }
+    }
+
+
     private void fireGameStateStarted(final GameDetail desc) {
         launcherManager.getWorkerManager().startEDT(
                 "fire game started notice", ActionSource.GUI_UPDATE,
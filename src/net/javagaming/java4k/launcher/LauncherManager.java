@@ -125,6 +125,7 @@ public class LauncherManager {
         gameManager.shutdownManager();
         workerManager.shutdownManager();
         errorMessageManager.shutdownManager();
+        Cache.getInstance().checkpoint();
         mainFrame.dispose();
     }
 
@@ -0,0 +1,244 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher;
+
+import net.javagaming.java4k.launcher.cache.ByteRateLimiter;
+import net.javagaming.java4k.launcher.cache.Cancellation;
+import net.javagaming.java4k.launcher.cache.Resource;
+import net.javagaming.java4k.launcher.progress.SimpleResourceProducer;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Downloads the details, icon and jar for the games showing in the game
+ * list before they're clicked.  Each game is fetched as a
+ * {@link WorkPriority#PREFETCH} download, one game at a time, and only
+ * while nothing the user asked for is waiting or running.  Work the user
+ * asks for cancels the game being fetched; it's fetched again once the
+ * user's work is done.  It can be turned off with
+ * {@link #PREFETCH_PROPERTY}, and the downloads are held under
+ * {@link #PREFETCH_RATE_PROPERTY} as they're received.
+ *
+ * @author Groboclown
+ */
+public class Prefetcher {
+    /**
+     * System property to turn prefetching on or off.  On unless set to
+     * "false".
+     */
+    public static final String PREFETCH_PROPERTY = "launcher.prefetch";
+
+    /**
+     * System property for the most kilobytes per second to prefetch.  0 or
+     * less means no limit.
+     */
+    public static final String PREFETCH_RATE_PROPERTY =
+            "launcher.prefetch.kb-per-second";
+
+    private static final int DEFAULT_PREFETCH_RATE_KB = 64;
+    private static final int MAX_FETCHED = 1024;
+
+    private final ProgressManager progressManager;
+    private final boolean enabled;
+    private final ByteRateLimiter limiter;
+    private final Object sync = new Object();
+    private final LinkedList<GameDescription> queue =
+            new LinkedList<GameDescription>();
+    // The games already fetched, by their detail source.  Only the most
+    // recent are remembered; the cache makes fetching one again cheap.
+    private final Set<Resource> fetched = Collections.newSetFromMap(
+            new RecentMap<Resource, Boolean>(MAX_FETCHED));
+    private Fetch current;
+    private boolean stopped = false;
+
+
+    Prefetcher(ProgressManager progressManager) {
+        this.progressManager = progressManager;
+        this.enabled = Boolean.parseBoolean(
+                System.getProperty(PREFETCH_PROPERTY, "true"));
+        long bytesPerSecond = Integer.getInteger(PREFETCH_RATE_PROPERTY,
+                DEFAULT_PREFETCH_RATE_KB) * 1024L;
+        this.limiter = bytesPerSecond > 0L
+                ? new ByteRateLimiter(bytesPerSecond) : null;
+    }
+
+
+    /**
+     * Replace the games waiting to be fetched with the ones now showing.
+     *
+     * @param games the visible games, in the order they should be fetched.
+     */
+    public void setVisibleGames(List<GameDescription> games) {
+        if (! enabled) {
+            return;
+        }
+        synchronized (sync) {
+            queue.clear();
+            for (GameDescription game: games) {
+                if (game != null && game.getGameDetailSource() != null &&
+                        ! fetched.contains(game.getGameDetailSource()) &&
+                        (current == null || ! game.getGameDetailSource()
+                        .equals(current.game.getGameDetailSource()))) {
+                    queue.add(game);
+                }
+            }
+        }
+        next();
+    }
+
+
+    /**
+     * Called when work the user is waiting on is queued.  The game being
+     * fetched is cancelled, to be fetched again later.
+     */
+    void preempt() {
+        Fetch fetch;
+        synchronized (sync) {
+            fetch = current;
+        }
+        if (fetch != null) {
+            fetch.cancellation.cancel();
+        }
+    }
+
+
+    /**
+     * Start fetching the next game, unless one is already being fetched or
+     * the user's work is waiting.  Called whenever the pending work
+     * changes.
+     */
+    void next() {
+        Fetch fetch;
+        synchronized (sync) {
+            if (stopped || current != null || queue.isEmpty() ||
+                    progressManager.hasUserWork()) {
+                return;
+            }
+            fetch = new Fetch(queue.poll());
+            current = fetch;
+        }
+        progressManager.prefetch(fetch.game.getGameDetailSource().getURI(),
+                fetch);
+    }
+
+
+    void shutdown() {
+        preempt();
+        synchronized (sync) {
+            stopped = true;
+            queue.clear();
+        }
+    }
+
+
+    private class Fetch implements Runnable {
+        final GameDescription game;
+        final Cancellation cancellation = new Cancellation();
+
+        Fetch(GameDescription game) {
+            this.game = game;
+        }
+
+        @Override
+        public void run() {
+            Cancellation previous = Cancellation.bind(cancellation);
+            ByteRateLimiter previousLimiter = ByteRateLimiter.bind(limiter);
+            try {
+                if (! cancellation.isCancelled()) {
+                    prefetch(game);
+                }
+            } finally {
+                Cancellation.bind(previous);
+                ByteRateLimiter.bind(previousLimiter);
+            }
+            synchronized (sync) {
+                current = null;
+                if (! cancellation.isCancelled()) {
+                    fetched.add(game.getGameDetailSource());
+                } else if (! stopped) {
+                    queue.addFirst(game);
+                }
+            }
+            next();
+        }
+    }
+
+
+    /**
+     * Remembers only the most recently used entries.
+     */
+    private static class RecentMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        RecentMap(int maxSize) {
+            super(64, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+
+    private void prefetch(GameDescription game) {
+        try {
+            // The detail readers download the icon, and usually the jar,
+            // while they parse the details.
+            DefaultGameDetailListResourceReader reader =
+                    new DefaultGameDetailListResourceReader();
+            reader.addPendingSource(game);
+            for (GameDetail detail: SimpleResourceProducer.load(
+                    game.getGameDetailSource(), reader)) {
+                if (detail.getJar() != null) {
+                    detail.getJar().read().close();
+                }
+            }
+            if (game.getIconResource() != null) {
+                game.getIconResource().read().close();
+            }
+        } catch (ThreadDeath e) {
+            throw e;
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Throwable e) {
+            if (! Cancellation.isCurrentCancelled()) {
+                // It will be tried again when the game is clicked.
+                System.err.println("Could not prefetch " + game.getName() +
+                        ": " + e.getMessage());
+            }
+        }
+    }
+}
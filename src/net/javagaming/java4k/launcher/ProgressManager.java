@@ -26,6 +26,10 @@
  */
 package net.javagaming.java4k.launcher;
 
+import net.javagaming.java4k.launcher.cache.Cache;
+import net.javagaming.java4k.launcher.cache.CancelledException;
+import net.javagaming.java4k.launcher.cache.Cancellation;
+import net.javagaming.java4k.launcher.cache.MaintenanceScheduler;
 import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.cache.ResourceListener;
 import net.javagaming.java4k.launcher.progress.ProgressController;
@@ -35,9 +39,8 @@ import net.javagaming.java4k.launcher.progress.ProgressWorker;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import java.io.IOException;
+import java.net.URI;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,32 +49,148 @@ import java.util.concurrent.TimeUnit;
  * @author Groboclown
  */
 public class ProgressManager {
+    /**
+     * System property for the most downloads that can run at once.
+     */
+    public static final String DOWNLOAD_THREADS_PROPERTY =
+            "launcher.download.threads";
+
+    /**
+     * System property for the most downloads that can run at once against
+     * a single host.
+     */
+    public static final String DOWNLOAD_PER_HOST_PROPERTY =
+            "launcher.download.per-host";
+
+    /**
+     * System property that, when "true", runs each download and each
+     * worker in its own virtual thread (Java 21 and later).
+     */
+    public static final String VIRTUAL_THREADS_PROPERTY =
+            "launcher.download.virtual";
+
+    /**
+     * System property for the most connections open at once to a single
+     * host when using virtual threads.
+     */
+    public static final String VIRTUAL_PER_HOST_PROPERTY =
+            "launcher.download.virtual-per-host";
+
+    private static final int DEFAULT_DOWNLOAD_THREADS = 6;
+    private static final int DEFAULT_DOWNLOAD_PER_HOST = 2;
+    private static final int DEFAULT_VIRTUAL_PER_HOST = 16;
+
+    // the same as the SwingWorker thread pool
+    private static final int WORKER_THREADS = 10;
+    private static final String WORKER_QUEUE = "workers";
+
     private final ProgressPanel main;
     private final LauncherManager launcherManager;
-    private final ExecutorService downloadService =
-            Executors.newSingleThreadExecutor();
-    private volatile int pendingDownload = 0;
+    private final DownloadScheduler downloadService;
+    private final DownloadScheduler workerService;
+    private final Prefetcher prefetcher;
 
 
     public ProgressManager(ProgressPanel progressPanel,
             LauncherManager launcherManager) {
         this.main = progressPanel;
         this.launcherManager = launcherManager;
+        Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                main.refreshGUI();
+                if (prefetcher != null) {
+                    prefetcher.next();
+                }
+            }
+        };
+        boolean virtual = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+        if (virtual && ! DownloadScheduler.hasVirtualThreads()) {
+            System.err.println("Virtual threads need Java 21 or later; " +
+                    "using thread pools");
+            virtual = false;
+        }
+        int downloadThreads = Integer.getInteger(DOWNLOAD_THREADS_PROPERTY,
+                DEFAULT_DOWNLOAD_THREADS);
+        int perHost = Integer.getInteger(DOWNLOAD_PER_HOST_PROPERTY,
+                DEFAULT_DOWNLOAD_PER_HOST);
+        int workersPerHost = WORKER_THREADS;
+        if (virtual) {
+            // Nothing is held back by the pool size anymore, so every
+            // connection, including those the workers make themselves,
+            // waits on the host's limit instead.
+            perHost = Math.max(1, Integer.getInteger(
+                    VIRTUAL_PER_HOST_PROPERTY, DEFAULT_VIRTUAL_PER_HOST));
+            workersPerHost = Integer.MAX_VALUE;
+            Cache.getInstance().setHostConnections(perHost);
+        }
+        QueueStats queueStats = new QueueStats() {
+            @Override
+            public void recordQueueWait(String queue, long waitNanos) {
+                Cache.getInstance().getStats().recordQueueWait(queue,
+                        waitNanos);
+            }
+
+            @Override
+            public void recordSuperseded() {
+                Cache.getInstance().getStats().recordSuperseded();
+            }
+        };
+        this.downloadService = new DownloadScheduler("Download",
+                downloadThreads, perHost, refresh, queueStats, virtual);
+        this.workerService = new DownloadScheduler("Worker",
+                WORKER_THREADS, workersPerHost, refresh, queueStats, virtual);
+        this.prefetcher = new Prefetcher(this);
+
+        // The cache's own refreshes wait behind everything else.
+        Cache.getInstance().setMaintenanceScheduler(new MaintenanceScheduler() {
+            @Override
+            public void schedule(URI url, Runnable task) {
+                downloadService.submit(getHost(url), WorkPriority.MAINTENANCE,
+                        null, task, null);
+            }
+        });
     }
 
     public void shutdownManager() {
         waitForWorkers();
+        Cache.getInstance().setMaintenanceScheduler(null);
+        prefetcher.shutdown();
         downloadService.shutdownNow();
+        workerService.shutdownNow();
         try {
             downloadService.awaitTermination(5L, TimeUnit.SECONDS);
+            workerService.awaitTermination(5L, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             System.err.println("Did not stop download in time");
         }
     }
 
 
+    /**
+     *
+     * @return the number of downloads the user is waiting on, either
+     *      waiting or running.  Prefetches and the cache's own refreshes
+     *      aren't counted.
+     */
     public int getPendingDownloads() {
-        return pendingDownload;
+        return downloadService.getPending(WorkPriority.VISIBLE);
+    }
+
+
+    /**
+     *
+     * @return true if any download or worker the user is waiting on is
+     *      waiting or running.
+     */
+    boolean hasUserWork() {
+        return downloadService.getPending(WorkPriority.VISIBLE) > 0 ||
+                workerService.getPending(WorkPriority.VISIBLE) > 0;
+    }
+
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
     }
 
 
@@ -79,7 +198,8 @@ public class ProgressManager {
      * Request a download of the given resource.  The listener will have
      * {@link net.javagaming.java4k.launcher.cache.ResourceListener#resourceLoaded(net.javagaming.java4k.launcher.cache.Resource)}
      * or {@link net.javagaming.java4k.launcher.cache.ResourceListener#resourceDownloadError(net.javagaming.java4k.launcher.cache.Resource, java.io.IOException)}
-     * called (unless the program is terminated before the download can begin).
+     * called (unless the program is terminated before the download can begin,
+     * or a newer request supersedes it before it begins).
      * The {@link net.javagaming.java4k.launcher.cache.ResourceListener#resourceDownloadStarted(net.javagaming.java4k.launcher.cache.Resource)}
      * will only be called if the resource requires a download.
      * <p/>
@@ -93,23 +213,91 @@ public class ProgressManager {
      */
     public void download(Resource resource, ResourceListener listener,
             boolean flush) {
-        if (resource == null || listener == null) {
+        download(resource, listener, flush, WorkPriority.INTERACTIVE, null,
+                null);
+    }
+
+
+    /**
+     * Request a download of the given resource, as with
+     * {@link #download(Resource, ResourceListener, boolean)}.
+     *
+     * @param resource resource to download
+     * @param listener callback on resource loading events
+     * @param flush true if the resource should be flushed before starting
+     * @param priority how soon the download should start
+     * @param supersedeKey if not null, a waiting download requested with an
+     *      equal key is dropped, as is this one if a newer request with the
+     *      key comes in before it starts.
+     * @param cancellation if not null, the download stops once this is
+     *      cancelled, and the listener isn't called.
+     */
+    public void download(Resource resource, ResourceListener listener,
+            boolean flush, WorkPriority priority, Object supersedeKey,
+            Cancellation cancellation) {
+        if (resource == null || listener == null || priority == null) {
             throw new NullPointerException();
         }
-        downloadService.submit(new Downloader(resource, listener, flush));
+        downloadService.submit(getHost(resource.getURI()), priority,
+                supersedeKey,
+                new Downloader(resource, listener, flush, cancellation), null);
+        preemptPrefetch(priority);
+    }
+
+
+    /**
+     * Queue a prefetch behind everything else but the cache's own
+     * refreshes.
+     *
+     * @param url what the task downloads first, for its host's queue
+     * @param task the prefetch work
+     */
+    void prefetch(URI url, Runnable task) {
+        downloadService.submit(getHost(url), WorkPriority.PREFETCH, null, task,
+                null);
     }
 
 
     public <V> void startWorker(final String name, final ActionSource action,
             boolean canCancel, ProgressWorker<V> worker) {
-        ProgressController controller = main.createWorkerController(
+        startWorker(name, action, canCancel, worker, WorkPriority.INTERACTIVE,
+                null, null);
+    }
+
+
+    /**
+     * Run the worker in the background once the waiting workers of the
+     * same or higher priority have started.
+     *
+     * @param supersedeKey if not null, a waiting worker started with an
+     *      equal key is dropped, as is this one if a newer worker with the
+     *      key comes in before it starts.  A dropped worker's methods are
+     *      never called.
+     * @param cancellation if not null, the worker's controller reports
+     *      itself cancelled once this is, and the worker's reads stop.
+     */
+    public <V> void startWorker(final String name, final ActionSource action,
+            boolean canCancel, ProgressWorker<V> worker,
+            WorkPriority priority, Object supersedeKey,
+            Cancellation cancellation) {
+        if (priority == null) {
+            throw new NullPointerException();
+        }
+        final ProgressController controller = main.createWorkerController(
                 name, canCancel);
         ProgressSwingWorker<V> swingWorker = new ProgressSwingWorker<V>(
-                name, action, worker, controller);
+                name, action, worker, controller, cancellation);
 
         // FIXME cache worker for waitForWorkers call.
 
-        swingWorker.execute();
+        workerService.submit(WORKER_QUEUE, priority, supersedeKey,
+                swingWorker, new Runnable() {
+            @Override
+            public void run() {
+                controller.completed();
+            }
+        });
+        preemptPrefetch(priority);
     }
 
 
@@ -138,6 +326,23 @@ public class ProgressManager {
 
 
 
+    private void preemptPrefetch(WorkPriority priority) {
+        if (priority.compareTo(WorkPriority.VISIBLE) <= 0) {
+            prefetcher.preempt();
+        }
+    }
+
+
+    private static String getHost(URI uri) {
+        String host = uri.getHost();
+        if (host == null) {
+            // local files still get their own queue
+            host = uri.getScheme();
+        }
+        return host;
+    }
+
+
     private void runEDT(String name, ActionSource action, Runnable r) {
         try {
             r.run();
@@ -157,15 +362,26 @@ public class ProgressManager {
         private final ActionSource action;
         private final ProgressWorker<V> worker;
         private final ProxyProgressController<V> proxyController;
+        private final Cancellation cancellation;
 
         ProgressSwingWorker(String name, ActionSource action,
                 ProgressWorker<V> worker,
-                ProgressController workerController) {
+                final ProgressController workerController,
+                final Cancellation requested) {
             this.name = name;
             this.action = action;
             this.worker = worker;
+            // The user's cancel button counts as well.
+            this.cancellation = new Cancellation() {
+                @Override
+                public boolean isCancelled() {
+                    return super.isCancelled() ||
+                            (requested != null && requested.isCancelled()) ||
+                            workerController.isCancelled();
+                }
+            };
             this.proxyController = new ProxyProgressController<V>(
-                    this, workerController);
+                    this, workerController, cancellation);
         }
 
 
@@ -176,11 +392,16 @@ public class ProgressManager {
 
         @Override
         protected Void doInBackground() {
+            Cancellation previous = Cancellation.bind(cancellation);
             try {
                 worker.doInBackground(proxyController);
+            } catch (CancelledException e) {
+                // no longer wanted, so there's nothing to report
             } catch (Exception e) {
                 launcherManager.getErrorMessageManager().gameError(
                     name, e, action);
+            } finally {
+                Cancellation.bind(previous);
             }
             return null;
         }
@@ -214,12 +435,14 @@ public class ProgressManager {
     class ProxyProgressController<V> implements ProgressWorker.Publisher<V> {
         private final ProgressSwingWorker<V> worker;
         private final ProgressController proxy;
+        private final Cancellation cancellation;
 
 
         ProxyProgressController(ProgressSwingWorker<V> worker,
-                ProgressController proxy) {
+                ProgressController proxy, Cancellation cancellation) {
             this.worker = worker;
             this.proxy = proxy;
+            this.cancellation = cancellation;
         }
 
         @Override
@@ -254,7 +477,7 @@ public class ProgressManager {
 
         @Override
         public boolean isCancelled() {
-            return proxy.isCancelled();
+            return cancellation.isCancelled();
         }
 
         @Override
@@ -274,30 +497,45 @@ public class ProgressManager {
         private final Resource resource;
         private final ResourceListener listener;
         private final boolean flush;
+        private final Cancellation cancellation;
+        private final long queued = System.nanoTime();
 
-        Downloader(Resource resource, ResourceListener listener, boolean flush) {
+        Downloader(Resource resource, ResourceListener listener, boolean flush,
+                Cancellation cancellation) {
             this.resource = resource;
             this.listener = listener;
             this.flush = flush;
+            this.cancellation = cancellation;
         }
 
 
         @Override
         public void run() {
+            if (cancellation != null && cancellation.isCancelled()) {
+                return;
+            }
+            long started = System.nanoTime();
             if (flush) {
                 resource.flush();
             }
+            Cancellation previous = Cancellation.bind(cancellation);
             try {
                 listener.resourceDownloadStarted(resource);
                 if (! resource.isAvailable()) {
                     try {
                         resource.read().close();
+                    } catch (CancelledException e) {
+                        // the listener no longer wants it
+                        return;
                     } catch (IOException e) {
                         e.printStackTrace();
                         listener.resourceDownloadError(resource, e);
                         return;
                     }
                 }
+                Cache.getInstance().getStats().recordScheduled(
+                        resource.getURI(), started - queued,
+                        System.nanoTime() - started);
                 listener.resourceLoaded(resource);
             } catch (ThreadDeath e) {
                 throw e;
@@ -306,6 +544,8 @@ public class ProgressManager {
             } catch (Throwable e) {
                 launcherManager.getErrorMessageManager().gameError(
                         resource.toString(), e, ActionSource.GAME_DOWNLOAD);
+            } finally {
+                Cancellation.bind(previous);
             }
         }
     }
@@ -33,29 +33,44 @@ import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.Timer;
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles a single gui for showing all the worker progress.  It draws the
  * label text directly on the progress bar.
+ * <p/>
+ * Updates only mark the panel as out of date.  While anything is running,
+ * a Swing timer redraws it, at most {@link #FPS_PROPERTY} times a second,
+ * if it's out of date; the timer stops once nothing is left running.
  *
  * @author Groboclown
  */
 public class ProgressPanel extends JPanel {
+    /**
+     * System property for the most times a second the progress bar is
+     * redrawn.  Zero redraws it on every update.
+     */
+    public static final String FPS_PROPERTY = "launcher.progress.fps";
+
     private static final int BAR_RANGE = 10000;
+    private static final int DEFAULT_FPS = 20;
 
 
     //private final LabelProgressBar bar;
     private final JProgressBar bar;
     private final JLabel count;
     private final JButton cancel;
-    private final Map<Worker, ProgressState> activeWorkers =
-            new HashMap<Worker, ProgressState>();
+    private final Set<Worker> activeWorkers = new HashSet<Worker>();
     private LauncherManager launcherManager;
+    private final Timer timer;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final AtomicBoolean timerRunning = new AtomicBoolean(false);
 
 
 
@@ -85,6 +100,19 @@ public class ProgressPanel extends JPanel {
         //sub.add(cancel, BorderLayout.WEST);
         sub.add(bar, BorderLayout.CENTER);
         sub.add(count, BorderLayout.EAST);
+
+        int fps = Integer.getInteger(FPS_PROPERTY, DEFAULT_FPS);
+        if (fps > 0) {
+            timer = new Timer(Math.max(1, 1000 / fps), new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    renderIfDirty();
+                }
+            });
+            timer.setCoalesce(true);
+        } else {
+            timer = null;
+        }
     }
 
 
@@ -101,7 +129,7 @@ public class ProgressPanel extends JPanel {
     public ProgressController createWorkerController(
             String name, boolean canCancel) {
         Worker worker = new Worker(name, canCancel);
-        setWorkerState(worker, null);
+        addWorker(worker);
         return worker;
     }
 
@@ -119,7 +147,7 @@ public class ProgressPanel extends JPanel {
     public void cancel() {
         boolean cancelled = false;
         synchronized (activeWorkers) {
-            for (Worker w: activeWorkers.keySet()) {
+            for (Worker w: activeWorkers) {
                 if (w.allowsCancel) {
                     // FIXME send an event instead?
                     w.isCancelled = true;
@@ -137,7 +165,7 @@ public class ProgressPanel extends JPanel {
 
     void removeWorker(Worker w) {
         synchronized (activeWorkers) {
-            if (activeWorkers.remove(w) != null) {
+            if (activeWorkers.remove(w)) {
                 refreshGUI();
             }
         }
@@ -145,38 +173,76 @@ public class ProgressPanel extends JPanel {
 
 
     /**
-     * called when a worker is created, or when a worker's state is updated.
+     * called when a worker is created.  The worker's state updates only
+     * call {@link #refreshGUI()}; its state is read when the panel is drawn.
      *
      * @param w
-     * @param newState
      */
-    void setWorkerState(Worker w, ProgressState newState) {
+    void addWorker(Worker w) {
         if (w == null) {
             throw new NullPointerException("null worker");
         }
-        if (newState == null) {
-            newState = new ProgressState(w.name);
-        }
         synchronized (activeWorkers) {
-            activeWorkers.put(w, newState);
+            activeWorkers.add(w);
         }
         refreshGUI();
     }
 
 
+    /**
+     * Mark the panel as out of date.  The first update after an idle spell
+     * is drawn straight away, and starts the timer.
+     */
     public void refreshGUI() {
-        if (launcherManager != null) {
+        if (launcherManager == null) {
+            return;
+        }
+        dirty.set(true);
+        if (timer == null || timerRunning.compareAndSet(false, true)) {
             launcherManager.getWorkerManager().startEDT("Progress Bar",
                     ActionSource.GUI_UPDATE, new Runnable() {
                 @Override
                 public void run() {
-                    runUIUpdate();
+                    renderIfDirty();
+                    if (timer != null) {
+                        timer.start();
+                    }
                 }
             });
         }
     }
 
 
+    /**
+     * Redraw if anything changed since the last time, and stop the timer
+     * if nothing is running any more.  Called in EDT.
+     */
+    private void renderIfDirty() {
+        if (dirty.getAndSet(false)) {
+            runUIUpdate();
+        }
+        if (timer != null && ! dirty.get() && ! isActive()) {
+            timer.stop();
+            timerRunning.set(false);
+            // An update may have come in after the check, and seen the
+            // timer still running.
+            if (dirty.get() && timerRunning.compareAndSet(false, true)) {
+                timer.start();
+            }
+        }
+    }
+
+
+    private boolean isActive() {
+        synchronized (activeWorkers) {
+            if (! activeWorkers.isEmpty()) {
+                return true;
+            }
+        }
+        return launcherManager.getWorkerManager().getPendingDownloads() > 0;
+    }
+
+
     /**
      * Recompute the gui components.  Called in EDT.
      */
@@ -210,14 +276,17 @@ public class ProgressPanel extends JPanel {
             String labelText = "";
             boolean canCancel = false;
 
-            for (Map.Entry<Worker, ProgressState> e: activeWorkers.entrySet()) {
+            for (Worker worker: activeWorkers) {
                 // ignore this state for now; only use what the process is
                 // actually doing, not what the user requested.
                 // FIXME However, we do need some kind of notice to the users
                 // that a cancel was triggered.
-                // if (e.getKey().isCancelled())
+                // if (worker.isCancelled())
 
-                ProgressState state = e.getValue();
+                ProgressState state = worker.getProgressState();
+                if (state == null) {
+                    state = new ProgressState(worker.name);
+                }
                 if (state.isIndeterminate() ||
                         state.getMinimum() >= state.getMaximum()) {
                     indeterminant = true;
@@ -228,7 +297,6 @@ public class ProgressPanel extends JPanel {
                 if (state.getLabelText() != null) {
                     labelText = state.getLabelText();
                 }
-                Worker worker = e.getKey();
                 if (! worker.isCancelled() && worker.allowsCancel) {
                     canCancel = true;
                 }
@@ -270,8 +338,8 @@ public class ProgressPanel extends JPanel {
         }
 
         @Override
-        protected void sendState(ProgressState p) {
-            setWorkerState(this, p);
+        protected void sendState() {
+            refreshGUI();
         }
     }
 
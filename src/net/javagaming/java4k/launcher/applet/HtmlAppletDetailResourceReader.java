@@ -31,6 +31,7 @@ import net.javagaming.java4k.launcher.GameDescription;
 import net.javagaming.java4k.launcher.GameDetail;
 import net.javagaming.java4k.launcher.WebUtil;
 import net.javagaming.java4k.launcher.cache.Cache;
+import net.javagaming.java4k.launcher.cache.CancelledException;
 import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.progress.ProgressWorker;
 
@@ -71,6 +72,10 @@ public class HtmlAppletDetailResourceReader implements
                             Cache.uri(source.getServerInfo().get("jar-uri"))));
                 }
 
+                if (controller.isCancelled()) {
+                    throw new CancelledException(source.getName());
+                }
+
                 // download the icon
                 Resource iconResource = source.getIconResource();
                 if (iconResource != null) {
@@ -84,6 +89,9 @@ public class HtmlAppletDetailResourceReader implements
                 controller.advanceBy(10);
 
                 // Download the jar
+                if (controller.isCancelled()) {
+                    throw new CancelledException(source.getName());
+                }
                 if (gd.getJar() != null) {
                     gd.getJar().read().close();
                     controller.advanceBy(10);
@@ -0,0 +1,132 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Keeps the downloads made by some work under a number of bytes per
+ * second.  The thread doing the work binds the limiter with
+ * {@link #bind(ByteRateLimiter)}, as with a {@link Cancellation}, and the
+ * cache waits on it after each read from the network, so the limit holds
+ * while a file is received and not just on average afterwards.
+ * <p/>
+ * As with {@link HostRateLimiter}, this is a token bucket holding up to a
+ * second's worth of bytes, and a reader that has to wait takes its bytes
+ * before sleeping, so readers sharing the limiter are let through in
+ * turn.
+ *
+ * @author Groboclown
+ */
+public class ByteRateLimiter {
+    private static final ThreadLocal<ByteRateLimiter> CURRENT =
+            new ThreadLocal<ByteRateLimiter>();
+
+    private final double perSecond;
+    private double tokens;
+    private long last = System.nanoTime();
+
+
+    /**
+     *
+     * @param bytesPerSecond the steady number of bytes per second allowed.
+     */
+    public ByteRateLimiter(long bytesPerSecond) {
+        if (bytesPerSecond <= 0L) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.perSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+
+    /**
+     *
+     * @return the limiter bound to the current thread, or null.
+     */
+    public static ByteRateLimiter current() {
+        return CURRENT.get();
+    }
+
+
+    /**
+     * Bind the limiter to the current thread.
+     *
+     * @param limiter the new limiter, or null for none.
+     * @return the previously bound limiter, to bind again once the work is
+     *      done.
+     */
+    public static ByteRateLimiter bind(ByteRateLimiter limiter) {
+        ByteRateLimiter previous = CURRENT.get();
+        if (limiter == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(limiter);
+        }
+        return previous;
+    }
+
+
+    /**
+     * Wait until the bytes just received fit within the rate.  The wait
+     * ends early if the current thread's work is cancelled.
+     *
+     * @param what the work, for the exception message.
+     * @param bytes the number of bytes received.
+     */
+    public void acquire(String what, int bytes) throws IOException {
+        long wait = reserve(bytes);
+        if (wait <= 0L) {
+            return;
+        }
+        try {
+            Cancellation.sleep(what, Math.max(1L, wait / 1000000L));
+        } catch (InterruptedException e) {
+            InterruptedIOException ex = new InterruptedIOException(what);
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Take the bytes, going into debt if there aren't enough.
+     *
+     * @return nanoseconds until the bytes are really available.
+     */
+    synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(perSecond, tokens + (now - last) * perSecond / 1e9);
+        last = now;
+        tokens -= bytes;
+        if (tokens >= 0.0) {
+            return 0L;
+        }
+        return (long) (-tokens * 1e9 / perSecond);
+    }
+}
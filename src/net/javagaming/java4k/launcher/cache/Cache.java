@@ -33,31 +33,74 @@ import net.javagaming.java4k.launcher.LauncherBundle;
 import net.javagaming.java4k.launcher.LauncherManager;
 import net.javagaming.java4k.launcher.Security;
 import net.javagaming.java4k.launcher.json.JSONArray;
+import net.javagaming.java4k.launcher.json.JSONException;
 import net.javagaming.java4k.launcher.json.JSONObject;
 import net.javagaming.java4k.launcher.json.JSONTokener;
 
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
-import java.io.Writer;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The main repository for the data cache.  All downloads are passed through
@@ -67,22 +110,210 @@ import java.util.Set;
  *
  * Instead of storing URLs, which are slow and perform network lookups on
  * .equals, we store URIs, and only pull out the URL when necessary.
+ * <p/>
+ * The index is kept as a binary, memory mapped snapshot ({@link CacheIndex})
+ * plus a {@link CacheJournal} of the changes made since that snapshot.  The
+ * journal is folded back into a new snapshot in the background once it
+ * grows large enough.  Snapshot entries only become {@link DefaultResource}
+ * objects when they are looked up.  The older "index.json" format is only
+ * read once, to migrate it.
+ * <p/>
+ * A {@link CacheBundle} in the cache directory is mapped as a read-only
+ * layer under the index: entries that aren't in the index are taken from
+ * it, and a cached file that isn't on the disk is read from it, as long as
+ * the bundle holds the same contents.
  *
  * @author Groboclown
  */
 public class Cache {
+    /**
+     * System property for the most megabytes of downloaded files to keep
+     * in the cache.  Zero, the default, means no limit.
+     */
+    public static final String MAX_SIZE_PROPERTY = "launcher.cache.max-mb";
+
+    /**
+     * System property for how many times a failed download is retried.
+     * Add ".static", ".http", ".volatile" or ".static-volatile" to set it
+     * for one type of resource.
+     */
+    public static final String RETRIES_PROPERTY = "launcher.download.retries";
+
+    /**
+     * System property for the milliseconds to wait before the first retry
+     * of a failed download; the wait doubles for each further retry.  Add
+     * the resource type as for {@link #RETRIES_PROPERTY}.
+     */
+    public static final String BACKOFF_PROPERTY =
+            "launcher.download.backoff-ms";
+
+    /**
+     * System property for the milliseconds to wait for a connection to the
+     * server.  Add the resource type as for {@link #RETRIES_PROPERTY}.
+     */
+    public static final String CONNECT_TIMEOUT_PROPERTY =
+            "launcher.download.connect-timeout-ms";
+
+    /**
+     * System property for the milliseconds a download may go without
+     * receiving any data before it is retried.  Add the resource type as
+     * for {@link #RETRIES_PROPERTY}.
+     */
+    public static final String READ_TIMEOUT_PROPERTY =
+            "launcher.download.read-timeout-ms";
+
+    /**
+     * System property for the most kilobytes of small resources to keep in
+     * memory.  Zero turns off the in-memory copies.
+     */
+    public static final String MEMORY_SIZE_PROPERTY = "launcher.cache.memory-kb";
+
+    /**
+     * System property for the most resources to keep in memory.
+     */
+    public static final String MEMORY_ENTRIES_PROPERTY =
+            "launcher.cache.memory-entries";
+
+    /**
+     * System property for how many seconds the launcher must go without
+     * reading the cache before cached files are checked for damage in the
+     * background.  Zero turns the check off.
+     */
+    public static final String SCRUB_IDLE_PROPERTY =
+            "launcher.cache.scrub-idle-seconds";
+
+    // Declared before INSTANCE, which uses it while loading the index.
+    private static final CacheJournal.Warnings JOURNAL_WARNINGS =
+            new CacheJournal.Warnings() {
+                @Override
+                public void warn(String message) {
+                    Cache.warn(message);
+                }
+            };
     private static final Cache INSTANCE = new Cache();
     private static final String CURRENT_VERSION = "1";
     private static final String CLASS_READABLE_DIR = "resource";
+    private static final int CHECKPOINT_RECORDS = 500;
+    private static final String INDEX_PREFIX = "index.";
+    private static final String INDEX_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final boolean IS_WINDOWS = System.getProperty(
+            "os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows");
+    private static final int TRANSFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> TRANSFER_BUFFER =
+            new ThreadLocal<ByteBuffer>() {
+                @Override
+                protected ByteBuffer initialValue() {
+                    return ByteBuffer.allocateDirect(TRANSFER_SIZE);
+                }
+            };
+    private static final String ETAG_ATTRIBUTE = "etag";
+    private static final String MODIFIED_ATTRIBUTE = "modified";
+    private static final String FRESH_ATTRIBUTE = "fresh";
+    private static final String SIZE_ATTRIBUTE = "size";
+    private static final String WIRE_SIZE_ATTRIBUTE = "wire";
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+    private static final String ACCESS_ATTRIBUTE = "access";
+    private static final String PARTIAL_ATTRIBUTE = "partial";
+    private static final String PART_SUFFIX = ".part";
+    private static final String FILE_TIME_ATTRIBUTE = "mtime";
+    static final String DIGEST_ATTRIBUTE = "sha256";
+    private static final String QUARANTINE_DIR = "quarantine";
+    private static final long SCRUB_POLL_MS = 5000L;
+    private static final long SCRUB_PASS_MS = 60L * 60L * 1000L;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int DEFAULT_RETRIES = 3;
+    private static final int DEFAULT_MEMORY_KB = 4096;
+    private static final int DEFAULT_MEMORY_ENTRIES = 256;
+    private static final int DEFAULT_SCRUB_IDLE_SECONDS = 30;
+    private static final int REVALIDATE_THREADS = 2;
+    private static final int ASYNC_READ_THREADS = 6;
+    private static final int DEFAULT_BACKOFF_MS = 1000;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 15000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+    private static final long MAX_BACKOFF_MS = 30000L;
+    private static final long CANCEL_POLL_MS = 100L;
     private final File cacheDir;
     private final UrlMap urlMap;
     private final List<ResourceListener> listeners =
-            new ArrayList<ResourceListener>();
+            new CopyOnWriteArrayList<ResourceListener>();
+    // Guards turning index entries into resources, and the pins.  Finding
+    // a resource that is already in the cache map needs no lock.
     private final Object sync = new Object();
-    private final Map<URI, DefaultResource> cache;
+    private final ConcurrentMap<URI, DefaultResource> cache;
+    private final ResourceGraph graph = new ResourceGraph();
     private final File cacheIndexFile;
+    private final File cacheIndexTempFile;
+    private final CacheIndex index;
+    private final CacheBundle bundle;
+    private final CacheJournal journal;
+    private final Object checkpointSync = new Object();
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+    private final ExecutorService checkpointService =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Cache index checkpoint");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+    private final ThreadPoolExecutor revalidateService =
+            new ThreadPoolExecutor(REVALIDATE_THREADS, REVALIDATE_THREADS,
+                    30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Cache revalidate");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final ThreadPoolExecutor asyncReadService =
+            new ThreadPoolExecutor(ASYNC_READ_THREADS, ASYNC_READ_THREADS,
+                    30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Cache read " +
+                            count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final Set<URI> revalidating = Collections.newSetFromMap(
+            new ConcurrentHashMap<URI, Boolean>());
+    private final ConcurrentMap<URI, FutureTask<Void>> inFlight =
+            new ConcurrentHashMap<URI, FutureTask<Void>>();
+    private final AtomicLong downloadCount = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final CacheStats stats = new CacheStats(this);
+    private final AtomicLong coalescedDownloadCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final Map<URI, Integer> pinned = new HashMap<URI, Integer>();
+    private final long maxCacheBytes =
+            Integer.getInteger(MAX_SIZE_PROPERTY, 0) * 1024L * 1024L;
+    private final AtomicLong cachedBytes = new AtomicLong(-1L);
+    private final AtomicBoolean evictionPending = new AtomicBoolean(false);
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong corruptCount = new AtomicLong();
+    private final AtomicLong scrubbedCount = new AtomicLong();
+    private final long scrubIdleMs = Integer.getInteger(SCRUB_IDLE_PROPERTY,
+            DEFAULT_SCRUB_IDLE_SECONDS) * 1000L;
+    private volatile long lastReadTime = System.currentTimeMillis();
+    private final HotTier hotTier = new HotTier(
+            Integer.getInteger(MEMORY_SIZE_PROPERTY, DEFAULT_MEMORY_KB) * 1024L,
+            Integer.getInteger(MEMORY_ENTRIES_PROPERTY, DEFAULT_MEMORY_ENTRIES));
     private LauncherManager launcherManager;
-    private int lastFileIndex = 0;
+    private final AtomicInteger lastFileIndex = new AtomicInteger();
+    private final AtomicInteger tempFileIndex = new AtomicInteger();
+    private volatile HostRateLimiter requestLimiter;
+    private volatile HostConnectionLimiter connectionLimiter;
+    private volatile MaintenanceScheduler maintenanceScheduler;
 
     public static Cache getInstance() {
         return INSTANCE;
@@ -118,19 +349,72 @@ public class Cache {
                         cacheDir);
                 }
             }
+            // The version 1 JSON index, only read to migrate it to the
+            // binary index.
             cacheIndexFile = new File(Security.getCacheDir(), "index.json");
+            cacheIndexTempFile = new File(Security.getCacheDir(),
+                    "index.json.tmp");
 
+            bundle = mountBundle();
+            index = loadNewestIndex();
             JSONObject obj = null;
-            if (cacheIndexFile.exists()) {
-                obj = readCacheFile(cacheIndexFile);
+            if (index == null) {
+                if (cacheIndexFile.exists()) {
+                    obj = readCacheFile(cacheIndexFile);
+                } else if (cacheIndexTempFile.exists()) {
+                    // The launcher died between removing the old snapshot
+                    // and renaming the new one into place.  The new one was
+                    // synced before the old one was removed, so it is
+                    // complete.
+                    obj = readCacheFile(cacheIndexTempFile);
+                }
             }
-            if (obj == null) {
-                cache = new HashMap<URI, DefaultResource>();
+            long journalGeneration = 0;
+            if (index != null) {
+                cache = new ConcurrentHashMap<URI, DefaultResource>();
+                lastFileIndex.set(index.getLastFileIndex());
+                journalGeneration = index.getJournalGeneration();
+            } else if (obj == null) {
+                cache = new ConcurrentHashMap<URI, DefaultResource>();
             } else {
                 validateCache(obj);
                 cache = loadResourceCache(obj);
-                lastFileIndex = loadLastFileIndex(obj);
+                lastFileIndex.set(loadLastFileIndex(obj));
+                journalGeneration = obj.optLong("journal", 0);
+            }
+
+            long newest = CacheJournal.replay(cacheDir, journalGeneration,
+                    new CacheJournal.RecordHandler() {
+                @Override
+                public void replay(JSONObject record) throws IOException {
+                    replayRecord(record);
+                }
+            }, JOURNAL_WARNINGS);
+
+            // Always start a fresh generation, so nothing is appended after
+            // a record that may have been torn by a crash.
+            journal = new CacheJournal(cacheDir, newest + 1,
+                    JOURNAL_WARNINGS);
+            if (obj != null || newest >= journalGeneration) {
+                // Either migrating from the JSON index, or the journal
+                // needs to be folded in.
+                scheduleCheckpoint();
             }
+
+            // Finds out how much is cached, and trims it if needed.
+            scheduleEviction();
+
+            startScrubber();
+            revalidateService.allowCoreThreadTimeOut(true);
+            asyncReadService.allowCoreThreadTimeOut(true);
+            // Starting the platform MBean server takes a while; keep it
+            // out of the launcher's startup.
+            checkpointService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    stats.register();
+                }
+            });
         } catch (Exception e) {
             e.printStackTrace();
             throw new IllegalStateException(e);
@@ -179,14 +463,11 @@ public class Cache {
      */
     public File getJarOutputFileFor(Resource r) {
         File f;
-        synchronized (sync) {
-            int id = 0;
-            File root = ((DefaultResource) r).getLocal();
-            do {
-                f = new File(root.getParentFile(), root.getName() + ".tmp." + id);
-                ++id;
-            } while (f.exists());
-        }
+        File root = ((DefaultResource) r).getLocal();
+        do {
+            f = new File(root.getParentFile(), root.getName() + ".tmp." +
+                    tempFileIndex.getAndIncrement());
+        } while (f.exists());
         f.deleteOnExit();
         return f;
     }
@@ -201,22 +482,19 @@ public class Cache {
      */
     public File getClassLoaderResourceFileFor(Resource r) {
         File f;
-        synchronized (sync) {
-            int id = 0;
-            File root = ((DefaultResource) r).getLocal();
-            File readDir = new File(root.getParentFile(), CLASS_READABLE_DIR);
-            if (! readDir.exists()) {
-                if (! readDir.mkdirs()) {
-                    throw new IllegalStateException("could not create " +
-                        readDir);
-                }
+        File root = ((DefaultResource) r).getLocal();
+        File readDir = new File(root.getParentFile(), CLASS_READABLE_DIR);
+        if (! readDir.exists()) {
+            // Another thread may have just made it.
+            if (! readDir.mkdirs() && ! readDir.isDirectory()) {
+                throw new IllegalStateException("could not create " +
+                    readDir);
             }
-            String baseName = root.getName() + ".tmp.";
-            do {
-                f = new File(readDir, baseName + id);
-                ++id;
-            } while (f.exists());
         }
+        String baseName = root.getName() + ".tmp.";
+        do {
+            f = new File(readDir, baseName + tempFileIndex.getAndIncrement());
+        } while (f.exists());
         f.deleteOnExit();
         return f;
     }
@@ -267,6 +545,8 @@ public class Cache {
 
 
     public void clearCache() {
+        journal.close();
+
         // Needs a progress bar.
         File[] entries = cacheDir.listFiles();
         if (entries != null) {
@@ -289,30 +569,43 @@ public class Cache {
             throw new NullPointerException("null url");
         }
         boolean updated = false;
-        DefaultResource res;
-        synchronized (sync) {
-            res = cache.get(url);
-            if (res == null) {
+        DefaultResource res = lookup(url);
+        if (res == null) {
+            File f = new File(cacheDir,
+                    Integer.toHexString(lastFileIndex.getAndIncrement()));
+            if (isStatic) {
+                res = new DefaultResource(url, f, "static");
+            } else if (url.getScheme().equals("http")) {
+                res = new DefaultResource(url, f, "http");
+            } else if (url.getScheme().equals("file")) {
+                // a non-static local file.  Yes, it can happen.
+                res = new DefaultResource(url, f, "static-volatile");
+            } else {
+                //System.out.println("schema: " + url.getScheme());
+                res = new DefaultResource(url, f, "volatile");
+            }
+            DefaultResource existing = cache.putIfAbsent(url, res);
+            if (existing != null) {
+                // Another thread added it first; its file index is just
+                // skipped.
+                res = existing;
+            } else {
                 updated = true;
-                File f = new File(cacheDir,
-                        Integer.toHexString(lastFileIndex++));
-                if (isStatic) {
-                    res = new DefaultResource(url, f, "static");
-                } else if (url.getScheme().equals("http")) {
-                    res = new DefaultResource(url, f, "http");
-                } else if (url.getScheme().equals("file")) {
-                    // a non-static local file.  Yes, it can happen.
-                    res = new DefaultResource(url, f, "static-volatile");
-                } else {
-                    //System.out.println("schema: " + url.getScheme());
-                    res = new DefaultResource(url, f, "volatile");
-                }
-                cache.put(url, res);
+                JSONObject record = new JSONObject();
+                record.put("op", CacheJournal.OP_ADD);
+                record.put("next", lastFileIndex.get());
+                record.put("res", res.toJSon());
+                journal(record);
             }
-            if (parent != null && parent instanceof DefaultResource) {
-                if (((DefaultResource) parent).addChild(res)) {
-                    updated = true;
-                }
+        }
+        if (parent != null && parent instanceof DefaultResource) {
+            if (((DefaultResource) parent).addChild(url)) {
+                updated = true;
+                JSONObject record = new JSONObject();
+                record.put("op", CacheJournal.OP_CHILD);
+                record.put("url", parent.getURI().toString());
+                record.put("child", url.toString());
+                journal(record);
             }
         }
         if (updated) {
@@ -323,11 +616,178 @@ public class Cache {
 
 
     Resource loadCachedResource(URI url) {
-        Resource ret;
+        return lookup(url);
+    }
+
+
+    /**
+     * Make every request to the network wait its turn with the limiter.
+     *
+     * @param limiter the limiter, or null to stop limiting.
+     */
+    void setRequestLimiter(HostRateLimiter limiter) {
+        requestLimiter = limiter;
+    }
+
+
+    /**
+     * Limit the connections open at once to each host.  Needed when the
+     * downloads aren't already held back by the size of a thread pool.
+     *
+     * @param perHost the most connections to one host, or 0 for no limit.
+     */
+    public void setHostConnections(int perHost) {
+        connectionLimiter = perHost > 0
+                ? new HostConnectionLimiter(perHost) : null;
+    }
+
+
+    /**
+     * Run the cache's own downloads, such as refreshing stale files, with
+     * the given scheduler rather than the cache's threads.
+     *
+     * @param scheduler the scheduler, or null to use the cache's threads.
+     */
+    public void setMaintenanceScheduler(MaintenanceScheduler scheduler) {
+        maintenanceScheduler = scheduler;
+    }
+
+
+    /**
+     *
+     * @return the hit, miss and download timing statistics.
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+
+    /**
+     *
+     * @return the number of downloads actually started.
+     */
+    public long getDownloadCount() {
+        return downloadCount.get();
+    }
+
+
+    /**
+     *
+     * @return the number of bytes written into the cache by all downloads,
+     *      after decompressing, including ones that later failed.
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+
+    /**
+     *
+     * @return the number of bytes received from the network by all
+     *      downloads, before decompressing.
+     */
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+
+    /**
+     *
+     * @return the number of reads that joined a download already running
+     *      in another thread, rather than starting their own.
+     */
+    public long getCoalescedDownloadCount() {
+        return coalescedDownloadCount.get();
+    }
+
+
+    /**
+     * @return the number of downloads answered with "304 Not Modified",
+     *      where the cached copy was kept and no content was transferred.
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+
+    /**
+     *
+     * @return the number of downloaded files removed to keep the cache
+     *      within its size limit.
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+
+    /**
+     *
+     * @return the number of reads served from the in-memory copies.
+     */
+    public long getMemoryHitCount() {
+        return hotTier.getHitCount();
+    }
+
+
+    /**
+     *
+     * @return the number of reads that had to go to the disk.
+     */
+    public long getMemoryMissCount() {
+        return hotTier.getMissCount();
+    }
+
+
+    /**
+     *
+     * @return the number of cached files found to be damaged, and moved
+     *      aside to be downloaded again.
+     */
+    public long getCorruptCount() {
+        return corruptCount.get();
+    }
+
+
+    /**
+     *
+     * @return the number of cached files fully checked by the background
+     *      scrubber.
+     */
+    public long getScrubbedCount() {
+        return scrubbedCount.get();
+    }
+
+
+    /**
+     * Keep the resource, and everything reachable through its children,
+     * from being evicted until it is unpinned.  Pins are counted, so each
+     * call must be matched by a call to {@link #unpin(Resource)}.
+     *
+     * @param r resource to keep; may be null.
+     */
+    public void pin(Resource r) {
+        if (r == null) {
+            return;
+        }
         synchronized (sync) {
-            ret = cache.get(url);
+            Integer count = pinned.get(r.getURI());
+            pinned.put(r.getURI(), count == null ? 1 : count + 1);
+        }
+    }
+
+
+    public void unpin(Resource r) {
+        if (r == null) {
+            return;
+        }
+        synchronized (sync) {
+            Integer count = pinned.get(r.getURI());
+            if (count == null || count <= 1) {
+                pinned.remove(r.getURI());
+            } else {
+                pinned.put(r.getURI(), count - 1);
+            }
         }
-        return ret;
     }
 
 
@@ -351,6 +811,225 @@ public class Cache {
 
 
 
+    /**
+     * Find the resource, turning its snapshot entry into an object if this
+     * is the first time it's been asked for.  Only that first time takes
+     * the sync lock.
+     *
+     * @param url resource URI
+     * @return the resource, or null if it isn't cached.
+     */
+    private DefaultResource lookup(URI url) {
+        return lookup(url, true);
+    }
+
+
+    /**
+     *
+     * @param url resource URI
+     * @param useBundle false to only look in the index, as when replaying
+     *      the journal, which records every resource taken from the bundle.
+     * @return the resource, or null if it isn't cached.
+     */
+    private DefaultResource lookup(URI url, boolean useBundle) {
+        DefaultResource res = cache.get(url);
+        if (res == null && index != null) {
+            synchronized (sync) {
+                int entry = index.find(url.toString());
+                if (entry >= 0 && ! index.isMaterialized(entry)) {
+                    index.setMaterialized(entry);
+                    try {
+                        res = new DefaultResource(index, entry);
+                        cache.put(res.getURI(), res);
+                    } catch (IOException e) {
+                        // Leaves the entry out of the next snapshot, so
+                        // the file is downloaded again as a new resource.
+                        warn("could not load the cache entry for " + url +
+                                "; it will be downloaded again: " +
+                                e.getMessage());
+                        File local = getRelativeFile(index.getLocal(entry));
+                        if (local.exists() && ! local.delete()) {
+                            warn("could not remove " + local);
+                        }
+                    }
+                } else {
+                    // Another thread may have just materialized it.
+                    res = cache.get(url);
+                }
+            }
+        }
+        if (res == null && useBundle && bundle != null) {
+            res = lookupBundled(url);
+        }
+        return res;
+    }
+
+
+    /**
+     * Turn a bundle entry into a resource with its own local file name,
+     * which is journaled like any new resource.
+     */
+    private DefaultResource lookupBundled(URI url) {
+        DefaultResource res;
+        synchronized (sync) {
+            res = cache.get(url);
+            if (res != null) {
+                return res;
+            }
+            CacheIndex bundled = bundle.getIndex();
+            int entry = bundled.find(url.toString());
+            if (entry < 0 || bundled.isMaterialized(entry)) {
+                return null;
+            }
+            bundled.setMaterialized(entry);
+            try {
+                res = new DefaultResource(bundled, entry, new File(cacheDir,
+                        Integer.toHexString(lastFileIndex.getAndIncrement())));
+            } catch (IOException e) {
+                warn("could not read " + url + " from the cache bundle: " +
+                        e.getMessage());
+                return null;
+            }
+            cache.put(url, res);
+        }
+        JSONObject record = new JSONObject();
+        record.put("op", CacheJournal.OP_ADD);
+        record.put("next", lastFileIndex.get());
+        record.put("res", res.toJSon());
+        journal(record);
+        cacheUpdated();
+        return res;
+    }
+
+
+    /**
+     *
+     * @return the bundle named by the system property, or the one in the
+     *      cache directory, or null if there isn't a usable one.
+     */
+    private CacheBundle mountBundle() {
+        String name = System.getProperty(CacheBundle.BUNDLE_PROPERTY);
+        File f = name == null
+                ? new File(cacheDir, CacheBundle.BUNDLE_FILE)
+                : new File(name);
+        if (! f.isFile()) {
+            if (name != null) {
+                warn("cache bundle " + f + " does not exist");
+            }
+            return null;
+        }
+        try {
+            CacheBundle ret = CacheBundle.open(f);
+            System.out.println("Reading cached files from bundle " + f);
+            return ret;
+        } catch (IOException e) {
+            warn("ignoring cache bundle " + f + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     *
+     * @param uri resource URI string
+     * @param digest SHA-256 of the expected contents
+     * @return the contents held in the mounted bundle, or null if it
+     *      doesn't have them.
+     */
+    ByteBuffer getBundled(String uri, String digest) {
+        if (bundle == null || digest == null) {
+            return null;
+        }
+        return bundle.getData(uri, digest);
+    }
+
+
+    /**
+     * Stream every cached resource, with its contents, into a single
+     * bundle file.  Another launcher can serve its cache straight from
+     * that file.
+     *
+     * @param f bundle file to write
+     * @return how many resources had their contents written.
+     * @throws IOException if the bundle couldn't be written.
+     */
+    public int exportBundle(File f) throws IOException {
+        CacheBundle.Writer w = new CacheBundle.Writer(this);
+        synchronized (sync) {
+            for (DefaultResource ar: cache.values()) {
+                ar.writeTo(w);
+            }
+            if (index != null) {
+                index.copyUnmaterialized(w);
+            }
+            if (bundle != null) {
+                w.startBundledEntries();
+                bundle.getIndex().copyUnmaterialized(w);
+            }
+        }
+        return w.write(f);
+    }
+
+
+    /**
+     *
+     * @return the newest complete binary index, or null if there isn't one.
+     */
+    private CacheIndex loadNewestIndex() {
+        List<File> files = getIndexFiles();
+        for (int i = files.size() - 1; i >= 0; --i) {
+            try {
+                return CacheIndex.load(files.get(i));
+            } catch (IOException e) {
+                warn("ignoring cache index " + files.get(i) + ": " +
+                        e.getMessage());
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     *
+     * @return the binary index files, oldest generation first.
+     */
+    private List<File> getIndexFiles() {
+        List<File> ret = new ArrayList<File>();
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f: files) {
+                if (getIndexGeneration(f) >= 0) {
+                    ret.add(f);
+                }
+            }
+        }
+        Collections.sort(ret, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ga = getIndexGeneration(a);
+                long gb = getIndexGeneration(b);
+                return ga < gb ? -1 : (ga == gb ? 0 : 1);
+            }
+        });
+        return ret;
+    }
+
+
+    private static long getIndexGeneration(File f) {
+        String name = f.getName();
+        if (! name.startsWith(INDEX_PREFIX) || ! name.endsWith(INDEX_SUFFIX) ||
+                name.length() <= INDEX_PREFIX.length() + INDEX_SUFFIX.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(INDEX_PREFIX.length(),
+                    name.length() - INDEX_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
     private static JSONObject readCacheFile(File cacheIndexFile) {
         JSONObject obj;
         try {
@@ -366,14 +1045,19 @@ public class Cache {
             // for now.
             //error(e);
             e.printStackTrace();
+            obj = null;
+        } catch (JSONException e) {
+            // A partially written snapshot.  The journal still has
+            // everything since the last good one.
+            e.printStackTrace();
+            obj = null;
+        }
 
+        if (obj == null) {
             // Invalid cache
-            // FIXME check the delete return code
             if (! cacheIndexFile.delete()) {
                 warn("could not remove out-of-date cache file");
             }
-
-            obj = null;
         }
 
         return obj;
@@ -385,10 +1069,12 @@ public class Cache {
         return obj.getInt("lastFileIndex");
     }
 
-    private Map<URI, DefaultResource> loadResourceCache(JSONObject obj) {
+    private ConcurrentMap<URI, DefaultResource> loadResourceCache(
+            JSONObject obj) {
         JSONArray rc = obj.getJSONArray("resources");
 
-        Map<URI, DefaultResource> ret = new HashMap<URI, DefaultResource>();
+        ConcurrentMap<URI, DefaultResource> ret =
+                new ConcurrentHashMap<URI, DefaultResource>();
 
         for (int i = 0; i < rc.length(); ++i) {
             JSONObject resObj = rc.getJSONObject(i);
@@ -401,12 +1087,62 @@ public class Cache {
         return ret;
     }
 
-    private DefaultResource createResourceFromJSON(JSONObject resObj) {
-        try {
+    /**
+     * Apply a single journal record on top of the loaded snapshot.  This
+     * must be safe to call with a record that the snapshot already
+     * contains.
+     *
+     * @param record journal record
+     * @throws IOException if the record has a bad URI
+     */
+    private void replayRecord(JSONObject record) throws IOException {
+        String op = record.getString("op");
+        if (CacheJournal.OP_ADD.equals(op)) {
+            DefaultResource res = createResourceFromJSON(
+                    record.getJSONObject("res"));
+            if (res != null && lookup(res.getURI(), false) == null) {
+                cache.put(res.getURI(), res);
+            }
+            lastFileIndex.set(Math.max(lastFileIndex.get(),
+                    record.getInt("next")));
+        } else if (CacheJournal.OP_CHILD.equals(op)) {
+            DefaultResource parent = lookup(
+                    urlMap.getURI(record.getString("url")), false);
+            if (parent != null) {
+                parent.addChild(urlMap.getURI(record.getString("child")));
+            }
+        } else if (CacheJournal.OP_RELOAD.equals(op)) {
+            JSONArray urls = record.getJSONArray("urls");
+            for (int i = 0; i < urls.length(); ++i) {
+                DefaultResource res = lookup(urlMap.getURI(urls.getString(i)), false);
+                if (res != null) {
+                    res.attemptReload = true;
+                }
+            }
+        } else if (CacheJournal.OP_UPDATE.equals(op)) {
+            JSONObject resObj = record.getJSONObject("res");
+            DefaultResource res = lookup(
+                    urlMap.getURI(resObj.getString("url")), false);
+            if (res != null) {
+                res.update(resObj);
+            }
+        } else {
+            warn("unknown journal record " + op);
+        }
+    }
+
+
+    /**
+     *
+     * @return the resource, or null if the record is unusable, in which
+     *      case the file is downloaded again when it's next asked for.
+     */
+    private DefaultResource createResourceFromJSON(JSONObject resObj) {
+        try {
             return new DefaultResource(resObj);
         } catch (IOException e) {
-            // FIXME what to do?
-            e.printStackTrace();
+            warn("ignoring the cache record for " + resObj.optString("url") +
+                    ": " + e.getMessage());
         }
         return null;
     }
@@ -419,37 +1155,504 @@ public class Cache {
     }
 
 
-    // FIXME remove this later, maybe?  Need to test performance to see if it's much of a hog.
     void cacheUpdated() {
-        saveCacheIndex();
+        if (journal.getRecordCount() >= CHECKPOINT_RECORDS) {
+            scheduleCheckpoint();
+        }
     }
 
 
+    void resourceUpdated(DefaultResource res) {
+        JSONObject record = new JSONObject();
+        record.put("op", CacheJournal.OP_UPDATE);
+        record.put("res", res.toJSon(false));
+        journal(record);
+        cacheUpdated();
+    }
+
+
+    private void journal(JSONObject record) {
+        try {
+            journal.append(record);
+        } catch (IOException e) {
+            // Without the journal, only a full checkpoint will keep the
+            // change.
+            warn("could not write to the cache journal: " + e.getMessage());
+            scheduleCheckpoint();
+        }
+    }
+
+
+    private void scheduleCheckpoint() {
+        if (checkpointPending.compareAndSet(false, true)) {
+            checkpointService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    checkpointPending.set(false);
+                    saveCacheIndex();
+                }
+            });
+        }
+    }
+
 
     /**
-     * Write the cache to disk
+     * Download a newer copy of a stale resource in the background.  The
+     * resource listeners are told if the contents changed.
      */
-    protected void saveCacheIndex() {
-        JSONObject obj = new JSONObject();
-        obj.put("version", CURRENT_VERSION);
+    void revalidateLater(final DefaultResource res) {
+        if (! revalidating.add(res.url)) {
+            // already queued
+            return;
+        }
+        runMaintenance(res.url, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (! res.isUpToDate()) {
+                        res.downloadOnce();
+                    }
+                } catch (IOException e) {
+                    warn("could not refresh " + res.url + ": " +
+                            e.getMessage());
+                } finally {
+                    revalidating.remove(res.url);
+                }
+            }
+        });
+    }
+
+
+    private void runMaintenance(URI url, Runnable task) {
+        MaintenanceScheduler scheduler = maintenanceScheduler;
+        if (scheduler == null) {
+            revalidateService.execute(task);
+        } else {
+            scheduler.schedule(url, task);
+        }
+    }
+
+
+    void cachedBytesChanged(long delta) {
+        if (maxCacheBytes > 0 && delta != 0L) {
+            long total = cachedBytes.get();
+            // Until the first eviction pass has counted everything, the
+            // total isn't known.
+            while (total >= 0L &&
+                    ! cachedBytes.compareAndSet(total, total + delta)) {
+                total = cachedBytes.get();
+            }
+            if (total + delta > maxCacheBytes) {
+                scheduleEviction();
+            }
+        }
+    }
+
+
+    private void scheduleEviction() {
+        if (maxCacheBytes > 0 && evictionPending.compareAndSet(false, true)) {
+            checkpointService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    evictionPending.set(false);
+                    try {
+                        evict();
+                    } catch (RuntimeException e) {
+                        error(e);
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Remove the least recently used downloaded files until the cache is
+     * back under its size limit.  Only the files are removed; the entries
+     * stay in the index, so a later read downloads them again.
+     * <p/>
+     * Pinned resources, and anything reachable from them, are never
+     * evicted.  Non-static resources go before static ones, as they were
+     * likely to be downloaded again anyway.
+     */
+    private void evict() {
+        List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>();
+        Set<String> keep;
         synchronized (sync) {
-            //System.out.println("cache updated");
-            obj.put("lastFileIndex", lastFileIndex);
-            JSONArray resArray = new JSONArray();
-            for (DefaultResource ar: cache.values()) {
-                JSONObject res = ar.toJSon();
-                resArray.put(res);
+            keep = getPinnedClosure();
+            for (DefaultResource res: cache.values()) {
+                if (! res.isLocal()) {
+                    candidates.add(new EvictionCandidate(res.url.toString(),
+                            res.local, res.size, res.lastAccess,
+                            "static".equals(res.type)));
+                }
             }
-            obj.put("resources", resArray);
+            if (index != null) {
+                for (int i = 0; i < index.size(); ++i) {
+                    if (! index.isMaterialized(i)) {
+                        Map<String, String> attrs = index.getAttributes(i);
+                        candidates.add(new EvictionCandidate(index.getURI(i),
+                                getRelativeFile(index.getLocal(i)),
+                                parseLong(attrs.get(SIZE_ATTRIBUTE), -1L),
+                                parseLong(attrs.get(ACCESS_ATTRIBUTE), 0L),
+                                "static".equals(index.getType(i))));
+                    }
+                }
+            }
+        }
 
-            try {
-                Writer out = new OutputStreamWriter(
-                    new FileOutputStream(cacheIndexFile), Resource.DEFAULT_ENCODING);
+        // Entries written before sizes were tracked need a look at the
+        // file; do that outside the lock.
+        long total = 0L;
+        for (EvictionCandidate c: candidates) {
+            if (c.size < 0L || c.lastAccess <= 0L) {
+                if (c.size < 0L) {
+                    c.size = c.local.length();
+                }
+                if (c.lastAccess <= 0L) {
+                    c.lastAccess = c.local.lastModified();
+                }
+            }
+            total += c.size;
+        }
+        cachedBytes.set(total);
+        if (total <= maxCacheBytes) {
+            return;
+        }
+
+        // Trim a bit below the limit, so the next few downloads don't
+        // each start another pass.
+        long target = maxCacheBytes - maxCacheBytes / 10;
+        Collections.sort(candidates);
+        for (EvictionCandidate c: candidates) {
+            if (total <= target) {
+                break;
+            }
+            if (c.size <= 0L || keep.contains(c.uri)) {
+                continue;
+            }
+            if (evict(c.uri)) {
+                total = cachedBytes.addAndGet(-c.size);
+                evictedCount.incrementAndGet();
+            }
+        }
+    }
+
+
+    private boolean evict(String uri) {
+        URI url;
+        try {
+            url = urlMap.getURI(uri);
+        } catch (IOException e) {
+            warn("could not evict " + uri + ": " + e.getMessage());
+            return false;
+        }
+        synchronized (sync) {
+            if (pinned.containsKey(url)) {
+                return false;
+            }
+        }
+        if (inFlight.containsKey(url)) {
+            return false;
+        }
+        // Every candidate is already in the index, so this never has to
+        // copy a bundle entry and journal it.
+        DefaultResource res = lookup(url, false);
+        return res != null && res.evictContent();
+    }
+
+
+    /**
+     * Must be called while holding the sync lock.
+     *
+     * @return the URIs of the pinned resources and all their descendants.
+     */
+    private Set<String> getPinnedClosure() {
+        Set<String> ret = new HashSet<String>();
+        for (DefaultResource res: getClosure(pinned.keySet())) {
+            ret.add(res.url.toString());
+        }
+        return ret;
+    }
+
+
+    /**
+     * Must be called while holding the sync lock.  Each resource is only
+     * visited once, so a loop in the children is harmless.
+     *
+     * @param roots the resources to start from
+     * @return the cached resources reachable from the roots, including the
+     *      roots themselves.
+     */
+    private List<DefaultResource> getClosure(Collection<URI> roots) {
+        List<DefaultResource> ret = new ArrayList<DefaultResource>();
+        BitSet seen = new BitSet();
+        int[] pending = new int[Math.max(16, roots.size())];
+        int top = 0;
+        for (URI root: roots) {
+            int id = graph.getId(root);
+            if (! seen.get(id)) {
+                seen.set(id);
+                pending[top++] = id;
+            }
+        }
+        while (top > 0) {
+            int id = pending[--top];
+            // Turning an index entry into a resource adds its children to
+            // the graph, so this must come before looking at them.
+            DefaultResource res = lookup(graph.getURI(id));
+            if (res == null) {
+                continue;
+            }
+            ret.add(res);
+            for (int kid: graph.getChildIds(id)) {
+                if (! seen.get(kid)) {
+                    seen.set(kid);
+                    if (top >= pending.length) {
+                        pending = Arrays.copyOf(pending, top * 2);
+                    }
+                    pending[top++] = kid;
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * Mark the resource and everything below it as needing a reload.  The
+     * whole tree is marked in one pass under the lock, and written to the
+     * journal as a single record.
+     *
+     * @param top the resource being flushed
+     */
+    void flush(DefaultResource top) {
+        Set<URI> marked = new HashSet<URI>();
+        synchronized (sync) {
+            for (DefaultResource res: getClosure(
+                    Collections.singleton(top.url))) {
+                if (res.markStale()) {
+                    marked.add(res.url);
+                }
+            }
+        }
+        if (! marked.isEmpty()) {
+            hotTier.invalidate(marked);
+            JSONArray urls = new JSONArray();
+            for (URI url: marked) {
+                urls.put(url.toString());
+            }
+            JSONObject record = new JSONObject();
+            record.put("op", CacheJournal.OP_RELOAD);
+            record.put("urls", urls);
+            journal(record);
+            cacheUpdated();
+        }
+    }
+
+
+    private void startScrubber() {
+        if (scrubIdleMs <= 0L) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    out.write(obj.toString());
-                } finally {
-                    out.close();
+                    scrub();
+                } catch (InterruptedException e) {
+                    // exit
+                }
+            }
+        }, "Cache scrubber");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+
+    /**
+     * Re-hash each cached file with a recorded digest, one at a time, only
+     * while the launcher isn't reading from the cache or downloading.
+     * Damaged files are quarantined.  Those belonging to the selected
+     * contest or the running game are queued to download again, so
+     * they're ready when the user launches the game.
+     */
+    private void scrub() throws InterruptedException {
+        List<String> pending = new ArrayList<String>();
+        long nextPass = 0L;
+        while (true) {
+            Thread.sleep(SCRUB_POLL_MS);
+            if (System.currentTimeMillis() - lastReadTime < scrubIdleMs ||
+                    ! inFlight.isEmpty()) {
+                continue;
+            }
+            if (pending.isEmpty()) {
+                if (System.currentTimeMillis() < nextPass) {
+                    continue;
+                }
+                nextPass = System.currentTimeMillis() + SCRUB_PASS_MS;
+                pending = getScrubCandidates();
+            }
+            // Check files until the launcher becomes busy again.
+            Set<String> pinned;
+            synchronized (sync) {
+                pinned = getPinnedClosure();
+            }
+            while (! pending.isEmpty() && inFlight.isEmpty() &&
+                    System.currentTimeMillis() - lastReadTime >= scrubIdleMs) {
+                scrub(pending.remove(pending.size() - 1), pinned);
+            }
+        }
+    }
+
+
+    /**
+     * Check one file.  Entries still only in the index are checked
+     * against the index's values, and only loaded if the file is damaged.
+     *
+     * @param pinned the URIs the launcher needs soon.
+     */
+    private void scrub(String uri, Set<String> pinned) {
+        try {
+            URI url = urlMap.getURI(uri);
+            DefaultResource res;
+            File local = null;
+            String checkedDigest = null;
+            long checkedSize = 0L;
+            long checkedTime = 0L;
+            synchronized (sync) {
+                res = cache.get(url);
+                int entry = (res == null && index != null)
+                        ? index.find(uri) : -1;
+                if (entry >= 0 && ! index.isMaterialized(entry)) {
+                    Map<String, String> attrs = index.getAttributes(entry);
+                    local = getRelativeFile(index.getLocal(entry));
+                    checkedDigest = attrs.get(DIGEST_ATTRIBUTE);
+                    checkedSize = parseLong(attrs.get(SIZE_ATTRIBUTE), -1L);
+                    checkedTime = parseLong(attrs.get(FILE_TIME_ATTRIBUTE));
                 }
+            }
+            if (res != null) {
+                if (! res.isAvailable() || inFlight.containsKey(res.url)) {
+                    return;
+                }
+                scrubbedCount.incrementAndGet();
+                if (res.verify(true)) {
+                    return;
+                }
+            } else {
+                if (checkedDigest == null || ! local.exists()) {
+                    return;
+                }
+                scrubbedCount.incrementAndGet();
+                long time = checkFile(local, checkedSize, checkedTime,
+                        checkedDigest, true);
+                if (time >= 0L) {
+                    // The time is corrected when the entry is next used.
+                    return;
+                }
+                res = lookup(url, false);
+                if (res == null || res.checked(time, checkedDigest,
+                        checkedSize, checkedTime)) {
+                    return;
+                }
+            }
+            if (pinned.contains(uri)) {
+                final DefaultResource reload = res;
+                runMaintenance(res.url, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            reload.read().close();
+                        } catch (IOException e) {
+                            warn("could not reload " + reload.url + ": " +
+                                    e.getMessage());
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            warn("could not check " + uri + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            error(e);
+        }
+    }
+
+
+    /**
+     * @return the URIs of every cached file that has a recorded digest.
+     */
+    private List<String> getScrubCandidates() {
+        List<String> ret = new ArrayList<String>();
+        synchronized (sync) {
+            for (DefaultResource res: cache.values()) {
+                if (res.digest != null) {
+                    ret.add(res.url.toString());
+                }
+            }
+            if (index != null) {
+                for (int i = 0; i < index.size(); ++i) {
+                    if (! index.isMaterialized(i) && index.getAttributes(i)
+                            .containsKey(DIGEST_ATTRIBUTE)) {
+                        ret.add(index.getURI(i));
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * Fold the journal into a new snapshot of the index right now.  Call
+     * this before the launcher exits, so the next start doesn't need to
+     * replay the journal.
+     */
+    public void checkpoint() {
+        saveCacheIndex();
+    }
+
+
+
+    /**
+     * Write the cache to disk.  The journal is rolled over first, so the
+     * snapshot contains everything in the older generations, which are
+     * removed once the snapshot is synced and in place, and the rename
+     * that put it there is synced as well.
+     * <p/>
+     * Each snapshot gets its own file name, so it never needs to replace a
+     * file that is still memory mapped.
+     */
+    protected void saveCacheIndex() {
+        synchronized (checkpointSync) {
+            long generation = journal.roll();
+            CacheIndex.Writer w = new CacheIndex.Writer();
+            int fileIndex;
+            // Readers don't wait on this; it only keeps index entries from
+            // being materialized between the two halves of the copy.  The
+            // file index is read last, so it covers every resource copied.
+            synchronized (sync) {
+                //System.out.println("cache updated");
+                for (DefaultResource ar: cache.values()) {
+                    ar.writeTo(w);
+                }
+                if (index != null) {
+                    index.copyUnmaterialized(w);
+                }
+                fileIndex = lastFileIndex.get();
+            }
+
+            File indexFile = new File(cacheDir,
+                    INDEX_PREFIX + generation + INDEX_SUFFIX);
+            File tempFile = new File(cacheDir,
+                    indexFile.getName() + TEMP_SUFFIX);
+            try {
+                w.write(tempFile, generation, fileIndex);
+                installFile(tempFile, indexFile);
+                syncDirectory(cacheDir);
+                journal.deleteBefore(generation);
+                removeOldIndexFiles(indexFile);
             } catch (IOException e) {
                 error(e);
             }
@@ -457,6 +1660,35 @@ public class Cache {
     }
 
 
+    private void removeOldIndexFiles(File current) {
+        for (File f: getIndexFiles()) {
+            // The index loaded at startup may still be mapped, which
+            // prevents removing it on some platforms; it will be cleaned up
+            // on a later run.
+            if (! f.equals(current) && ! f.delete()) {
+                warn("could not remove old cache index " + f);
+            }
+        }
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f: files) {
+                if (f.getName().startsWith(INDEX_PREFIX) &&
+                        f.getName().endsWith(INDEX_SUFFIX + TEMP_SUFFIX)) {
+                    if (! f.delete()) {
+                        warn("could not remove " + f);
+                    }
+                }
+            }
+        }
+        if (cacheIndexFile.exists() && ! cacheIndexFile.delete()) {
+            warn("could not remove migrated cache index " + cacheIndexFile);
+        }
+        if (cacheIndexTempFile.exists() && ! cacheIndexTempFile.delete()) {
+            warn("could not remove " + cacheIndexTempFile);
+        }
+    }
+
+
     protected String getAsRelativeString(File f) {
         String af = f.getAbsolutePath();
         String cf = cacheDir.getAbsolutePath();
@@ -492,23 +1724,415 @@ public class Cache {
     }
 
 
+    /**
+     * Work out how long a response may be used before it must be checked
+     * with the server again, from its Cache-Control max-age or, failing
+     * that, its Expires header.
+     *
+     * @return the time until which the response is fresh, or 0 if it must
+     *      always be revalidated.
+     */
+    static long getFreshUntil(URLConnection conn) {
+        long now = System.currentTimeMillis();
+        String control = conn.getHeaderField("Cache-Control");
+        if (control != null) {
+            long maxAge = -1L;
+            for (String directive: control.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ENGLISH);
+                if (directive.equals("no-cache") ||
+                        directive.equals("no-store")) {
+                    return 0L;
+                }
+                if (directive.startsWith("max-age=")) {
+                    maxAge = parseLong(directive.substring(8).trim());
+                }
+            }
+            if (maxAge > 0L) {
+                return now + maxAge * 1000L;
+            }
+            if (maxAge == 0L) {
+                return 0L;
+            }
+        }
+        long expires = conn.getExpiration();
+        if (expires > 0L) {
+            // Measure against the server's clock, not ours.
+            long date = conn.getDate();
+            return date > 0L ? now + (expires - date) : expires;
+        }
+        return 0L;
+    }
+
+
+    /**
+     * @return the value of the property for the resource type, falling
+     *      back to the property for all types.
+     */
+    private static int getTypeProperty(String name, String type,
+            int defaultValue) {
+        return Integer.getInteger(name + "." + type,
+                Integer.getInteger(name, defaultValue));
+    }
+
+
+    /**
+     * @return the first byte position of a 206 response's body, or -1 if
+     *      it can't be read.
+     */
+    static long getRangeStart(URLConnection conn) {
+        // "bytes 100-999/1000"
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null || ! range.startsWith("bytes ")) {
+            return -1L;
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return -1L;
+        }
+        return parseLong(range.substring(6, dash).trim(), -1L);
+    }
+
+
+    /**
+     * @return the value to send in If-Range when resuming this response,
+     *      or null if it can't be resumed safely.  Weak ETags can't be
+     *      used for ranges.
+     */
+    static String getResumeValidator(URLConnection conn) {
+        String tag = conn.getHeaderField("ETag");
+        if (tag != null && ! tag.startsWith("W/")) {
+            return tag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+
+    private static long parseLong(String value) {
+        return parseLong(value, 0L);
+    }
+
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Check a cached file against the length, time and digest recorded for
+     * it.  Files with nothing recorded always pass.
+     *
+     * @param always hash the file even if its length and time match.
+     * @return the file's modification time, or -1 if it doesn't match.
+     */
+    static long checkFile(File f, long size, long time, String digest,
+            boolean always) {
+        long actualTime = f.lastModified();
+        if (digest == null || size < 0L) {
+            return actualTime;
+        }
+        if (f.length() != size) {
+            return -1L;
+        }
+        if (! always && actualTime == time) {
+            return actualTime;
+        }
+        try {
+            MessageDigest md = newDigest();
+            digestFile(f, size, md);
+            return digest.equals(toHex(md.digest())) ? actualTime : -1L;
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to have it.
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Add the first bytes of a file to a digest.
+     */
+    static void digestFile(File f, long length, MessageDigest md)
+            throws IOException {
+        ByteBuffer buff = TRANSFER_BUFFER.get();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            long pos = 0L;
+            while (pos < length) {
+                buff.clear();
+                if (length - pos < buff.capacity()) {
+                    buff.limit((int) (length - pos));
+                }
+                int len = ch.read(buff, pos);
+                if (len < 0) {
+                    throw new IOException(f + " is shorter than " + length +
+                            " bytes");
+                }
+                pos += len;
+                buff.flip();
+                md.update(buff);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b: data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Read all of a small file.
+     *
+     * @param f file to read
+     * @param length the file's length
+     * @return the bytes read; shorter than the length if the file shrank.
+     */
+    static byte[] readFully(File f, int length) throws IOException {
+        byte[] ret = new byte[length];
+        int pos = 0;
+        InputStream in = new FileInputStream(f);
+        try {
+            int len;
+            while (pos < length &&
+                    (len = in.read(ret, pos, length - pos)) > 0) {
+                pos += len;
+            }
+        } finally {
+            in.close();
+        }
+        return pos == length ? ret : Arrays.copyOf(ret, pos);
+    }
+
+
+    /**
+     * Undo the content encoding the server applied to a response body.
+     *
+     * @param in the body as it came over the network
+     * @param encoding the Content-Encoding header, or null
+     * @return the decoded body
+     * @throws IOException if the encoding isn't supported
+     */
+    static InputStream decodeBody(InputStream in, String encoding)
+            throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+        encoding = encoding.trim().toLowerCase(Locale.ENGLISH);
+        if (encoding.length() == 0 || "identity".equals(encoding)) {
+            return in;
+        }
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new GZIPInputStream(in, 8192);
+        }
+        if ("deflate".equals(encoding)) {
+            // Servers disagree on whether this has the zlib header, so
+            // look for one.
+            PushbackInputStream pin = new PushbackInputStream(in, 2);
+            int b0 = pin.read();
+            int b1 = b0 < 0 ? -1 : pin.read();
+            if (b1 >= 0) {
+                pin.unread(b1);
+            }
+            if (b0 >= 0) {
+                pin.unread(b0);
+            }
+            boolean zlib = b1 >= 0 && (b0 & 0x0f) == 8 &&
+                    ((b0 << 8) | b1) % 31 == 0;
+            final Inflater inflater = new Inflater(! zlib);
+            return new InflaterInputStream(pin, inflater, 8192) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        throw new IOException("unsupported content encoding " + encoding);
+    }
+
+
+    /**
+     * Move the source file over the target.  Uses an atomic rename where
+     * the file system supports one.
+     */
+    static void installFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Flush the directory's entries to disk, so that a file just renamed
+     * into it is still there after a power loss.
+     * <p/>
+     * Windows can't open a directory as a file channel, so there this does
+     * nothing, and the rename is left to the file system's own journal.
+     */
+    static void syncDirectory(File dir) throws IOException {
+        if (IS_WINDOWS) {
+            return;
+        }
+        FileChannel channel = FileChannel.open(dir.toPath(),
+                StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    /**
+     * A downloaded file that may be evicted.  Sorts with the first to
+     * evict at the front.
+     */
+    private static class EvictionCandidate
+            implements Comparable<EvictionCandidate> {
+        final String uri;
+        final File local;
+        final boolean isStatic;
+        long size;
+        long lastAccess;
+
+        EvictionCandidate(String uri, File local, long size, long lastAccess,
+                boolean isStatic) {
+            this.uri = uri;
+            this.local = local;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.isStatic = isStatic;
+        }
+
+        @Override
+        public int compareTo(EvictionCandidate o) {
+            if (isStatic != o.isStatic) {
+                return isStatic ? 1 : -1;
+            }
+            return lastAccess < o.lastAccess ? -1
+                    : (lastAccess == o.lastAccess ? 0 : 1);
+        }
+    }
+
+
+    /**
+     * Counts the bytes read through it, for the size of a download as it
+     * came over the network.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                ++count;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+
     class DefaultResource implements Resource {
-        private final Set<URI> children = new HashSet<URI>();
         private final URI url;
+        // This resource's node in the parent / child graph.
+        private final int id;
         private final File local;
-        private boolean attemptReload = false;
+        private volatile boolean attemptReload = false;
         private final String type;
         private URL realUrl;
 
+        // HTTP validators from the last response, and the time until which
+        // the cached copy may be used without asking the server.
+        private volatile String etag;
+        private volatile long lastModified;
+        private volatile long freshUntil;
+
+        // Size of the downloaded file, or -1 if not known, and when it was
+        // last read.  The access time is only saved with the snapshot; it
+        // isn't worth a journal record on every read.
+        private volatile long size = -1L;
+        private volatile long wireSize = -1L;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        // What the partial download file is a part of, for If-Range.
+        private volatile String partialValidator;
+
+        // The downloaded file's modification time and SHA-256, to find
+        // files damaged after they were written.
+        private volatile long fileTime;
+        private volatile String digest;
+
+        // Held while the downloaded file is replaced, moved aside or
+        // removed, so a check of the old file can't act on the new one.
+        private final Object fileLock = new Object();
+
         DefaultResource(URI url, File local, String type) {
             this.type = type;
             this.url = url;
+            this.id = graph.getId(url);
             this.local = local;
         }
 
         DefaultResource(JSONObject obj) throws IOException {
             this.type = obj.getString("type");
             this.url = urlMap.getURI(obj.getString("url"));
+            this.id = graph.getId(url);
             this.local = getRelativeFile(obj.getString("local"));
             if (obj.has("old")) {
                 Object o = obj.get("old");
@@ -517,11 +2141,64 @@ public class Cache {
                 }
             }
 
-            JSONArray kids = obj.getJSONArray("children");
-            for (int i = 0; i < kids.length(); ++i) {
-                String kid = kids.getString(i);
-                children.add(urlMap.getURI(kid));
+            readValidators(obj);
+
+            JSONArray kids = obj.optJSONArray("children");
+            if (kids != null) {
+                for (int i = 0; i < kids.length(); ++i) {
+                    addChild(urlMap.getURI(kids.getString(i)));
+                }
+            }
+        }
+
+        DefaultResource(CacheIndex index, int entry) throws IOException {
+            this(index, entry, getRelativeFile(index.getLocal(entry)));
+        }
+
+        DefaultResource(CacheIndex index, int entry, File local)
+                throws IOException {
+            this.type = index.getType(entry);
+            this.url = urlMap.getURI(index.getURI(entry));
+            this.id = graph.getId(url);
+            this.local = local;
+            this.attemptReload = index.isReload(entry);
+            for (String kid: index.getChildren(entry)) {
+                addChild(urlMap.getURI(kid));
             }
+            Map<String, String> attrs = index.getAttributes(entry);
+            this.etag = attrs.get(ETAG_ATTRIBUTE);
+            this.lastModified = parseLong(attrs.get(MODIFIED_ATTRIBUTE));
+            this.freshUntil = parseLong(attrs.get(FRESH_ATTRIBUTE));
+            this.size = parseLong(attrs.get(SIZE_ATTRIBUTE), -1L);
+            this.wireSize = parseLong(attrs.get(WIRE_SIZE_ATTRIBUTE), -1L);
+            this.lastAccess = parseLong(attrs.get(ACCESS_ATTRIBUTE), 0L);
+            this.partialValidator = attrs.get(PARTIAL_ATTRIBUTE);
+            this.fileTime = parseLong(attrs.get(FILE_TIME_ATTRIBUTE));
+            this.digest = attrs.get(DIGEST_ATTRIBUTE);
+        }
+
+
+        /**
+         * Load the journaled state changes into this resource.
+         *
+         * @param obj the journal record's resource data.
+         */
+        void update(JSONObject obj) {
+            this.attemptReload = obj.optBoolean("old", attemptReload);
+            readValidators(obj);
+        }
+
+
+        private void readValidators(JSONObject obj) {
+            this.etag = obj.optString(ETAG_ATTRIBUTE, null);
+            this.lastModified = obj.optLong(MODIFIED_ATTRIBUTE, 0L);
+            this.freshUntil = obj.optLong(FRESH_ATTRIBUTE, 0L);
+            this.size = obj.optLong(SIZE_ATTRIBUTE, -1L);
+            this.wireSize = obj.optLong(WIRE_SIZE_ATTRIBUTE, -1L);
+            this.lastAccess = obj.optLong(ACCESS_ATTRIBUTE, 0L);
+            this.partialValidator = obj.optString(PARTIAL_ATTRIBUTE, null);
+            this.fileTime = obj.optLong(FILE_TIME_ATTRIBUTE, 0L);
+            this.digest = obj.optString(DIGEST_ATTRIBUTE, null);
         }
 
         public boolean isLocal() {
@@ -543,7 +2220,17 @@ public class Cache {
 
         @Override
         public boolean isAvailable() {
-            return local.exists();
+            return local.exists() || getBundled() != null;
+        }
+
+
+        /**
+         *
+         * @return this resource's contents in the mounted bundle, or null
+         *      if the bundle doesn't have this copy of them.
+         */
+        private ByteBuffer getBundled() {
+            return Cache.this.getBundled(url.toString(), digest);
         }
 
         @Override
@@ -551,15 +2238,131 @@ public class Cache {
             return true;
         }
 
-        @Override
-        public Reader read(String encoding)
+        @Override
+        public Reader read(String encoding)
+                throws IOException {
+            return new InputStreamReader(read(), encoding);
+        }
+
+        @Override
+        public String readAsString(String encoding) throws IOException {
+            return readString(encoding, false);
+        }
+
+        @Override
+        public String readCachedAsString(String encoding) throws IOException {
+            return readString(encoding, true);
+        }
+
+        @Override
+        public CompletableFuture<byte[]> readBytesAsync() {
+            byte[] hot = isLocal() ? null : hotTier.getBytes(url);
+            if (hot != null) {
+                touch();
+                stats.hit();
+                return CompletableFuture.completedFuture(hot.clone());
+            }
+            return readAsync(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    InputStream in = read();
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        byte[] buff = new byte[4096];
+                        int len;
+                        while ((len = in.read(buff, 0, 4096)) > 0) {
+                            out.write(buff, 0, len);
+                        }
+                        return out.toByteArray();
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public CompletableFuture<String> readStringAsync(
+                final String encoding) {
+            String hot = isLocal() ? null : hotTier.getString(url, encoding);
+            if (hot != null) {
+                touch();
+                stats.hit();
+                return CompletableFuture.completedFuture(hot);
+            }
+            return readAsync(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return readString(encoding, false);
+                }
+            });
+        }
+
+        /**
+         * Run the read in the read pool, under the caller's cancellation
+         * and download rate limit.  Cancelling the returned future cancels
+         * the read as well.  The stages that depend on the future run while
+         * both are still bound, so reads they start carry them on.
+         */
+        private <T> CompletableFuture<T> readAsync(final Callable<T> reader) {
+            final CompletableFuture<T> ret = new CompletableFuture<T>();
+            final Cancellation caller = Cancellation.current();
+            final ByteRateLimiter limiter = ByteRateLimiter.current();
+            final Cancellation cancellation = new Cancellation() {
+                @Override
+                public boolean isCancelled() {
+                    return ret.isCancelled() || super.isCancelled() ||
+                            (caller != null && caller.isCancelled());
+                }
+            };
+            asyncReadService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Cancellation previous = Cancellation.bind(cancellation);
+                    ByteRateLimiter previousLimiter =
+                            ByteRateLimiter.bind(limiter);
+                    try {
+                        T value;
+                        try {
+                            value = reader.call();
+                        } catch (Throwable e) {
+                            ret.completeExceptionally(e);
+                            return;
+                        }
+                        ret.complete(value);
+                    } finally {
+                        Cancellation.bind(previous);
+                        ByteRateLimiter.bind(previousLimiter);
+                    }
+                }
+            });
+            return ret;
+        }
+
+        private String readString(String encoding, boolean allowStale)
                 throws IOException {
-            return new InputStreamReader(read(), encoding);
+            if (isLocal()) {
+                return decode(read(encoding));
+            }
+            checkReadThread();
+            String hot = hotTier.getString(url, encoding);
+            if (hot != null) {
+                touch();
+                stats.hit();
+                return hot;
+            }
+            prepareRead(allowStale);
+            boolean current = isUpToDate();
+            long token = hotTier.getGeneration();
+            String ret = decode(new InputStreamReader(openLocal(current),
+                    encoding));
+            if (current) {
+                hotTier.putString(url, encoding, ret, token);
+            }
+            return ret;
         }
 
-        @Override
-        public String readAsString(String encoding) throws IOException {
-            Reader r = read(encoding);
+        private String decode(Reader r) throws IOException {
             StringBuilder sb = new StringBuilder();
             try {
                 char[] buff = new char[4096];
@@ -585,26 +2388,30 @@ public class Cache {
 
         @Override
         public void flush() {
-            if (local.exists() && ! isLocal()) {
-                // Rather than actually deleting the local file, we'll mark it
-                // as needing an update
-                attemptReload = true;
-            }
-            for (URI child: children) {
-                Resource res = loadCachedResource(child);
-                if (res != null) {
-                    res.flush();
-                }
+            Cache.this.flush(this);
+        }
+
+        /**
+         * Rather than actually deleting the local file, mark it as needing
+         * an update.  A copy the server said is still fresh is kept as-is,
+         * without asking the server again.  The caller must drop the
+         * resource from the memory tier.
+         *
+         * @return true if the resource wasn't already marked.
+         */
+        boolean markStale() {
+            // A known size saves looking at the disk for each resource.
+            if (attemptReload || isLocal() || isFresh() ||
+                    (size <= 0L && ! local.exists())) {
+                return false;
             }
+            attemptReload = true;
+            return true;
         }
 
         @Override
         public InputStream read() throws IOException {
-            if (SwingUtilities.isEventDispatchThread()) {
-                RuntimeException r = new Java4kException("Incorrect read() in the EDT");
-                r.printStackTrace();
-                throw r;
-            }
+            checkReadThread();
 
 
             if (isLocal()) {
@@ -618,11 +2425,98 @@ public class Cache {
                     throw new RemoteConnectionException(getURI());
                 }
             }
-            if (! isUpToDate()) {
+            prepareRead(false);
+            return openLocal(isUpToDate());
+        }
+
+
+        @Override
+        public InputStream readCached() throws IOException {
+            if (isLocal()) {
+                return read();
+            }
+            checkReadThread();
+            prepareRead(true);
+            return openLocal(isUpToDate());
+        }
+
+
+        private void checkReadThread() {
+            if (SwingUtilities.isEventDispatchThread()) {
+                RuntimeException r = new Java4kException("Incorrect read() in the EDT");
+                r.printStackTrace();
+                throw r;
+            }
+        }
+
+
+        /**
+         * Record a read, including one served from memory, so neither the
+         * eviction nor the background check treats the file as idle.
+         */
+        private void touch() {
+            lastAccess = System.currentTimeMillis();
+            lastReadTime = lastAccess;
+        }
+
+
+        /**
+         * Make sure there's a usable cached copy to read.
+         *
+         * @param allowStale if there's an out of date copy, use it and
+         *      download the newer one in the background.
+         */
+        private void prepareRead(boolean allowStale) throws IOException {
+            touch();
+            if (isAvailable()) {
+                // Quarantines the file if it's damaged.
+                verify(false);
+            }
+            if (allowStale && isAvailable()) {
+                stats.hit();
+                if (! isUpToDate()) {
+                    revalidateLater(this);
+                }
+            } else if (! isUpToDate()) {
                 //System.out.println("Static: No local file " + getLocal() + " / needs update: " + getURI());
-                download();
+                stats.miss();
+                downloadOnce();
+            } else {
+                stats.hit();
+            }
+        }
+
+
+        /**
+         * Open the cached copy, from memory if it's there.  Small files are
+         * kept in memory for the next read.
+         *
+         * @param keep false if the copy is out of date, and so shouldn't
+         *      be kept in memory.
+         */
+        private InputStream openLocal(boolean keep) throws NoCacheException {
+            byte[] hot = hotTier.getBytes(url);
+            if (hot != null) {
+                return new ByteArrayInputStream(hot);
+            }
+            long token = hotTier.getGeneration();
+            ByteBuffer bundled = local.exists() ? null : getBundled();
+            if (bundled != null) {
+                if (keep && hotTier.accepts(bundled.remaining())) {
+                    byte[] data = new byte[bundled.remaining()];
+                    bundled.get(data);
+                    hotTier.putBytes(url, data, token);
+                    return new ByteArrayInputStream(data);
+                }
+                return CacheBundle.newInputStream(bundled);
             }
             try {
+                long length = local.length();
+                if (keep && length > 0L && hotTier.accepts(length)) {
+                    byte[] data = readFully(local, (int) length);
+                    hotTier.putBytes(url, data, token);
+                    return new ByteArrayInputStream(data);
+                }
                 return new FileInputStream(getLocal());
             } catch (IOException e) {
                 throw new NoCacheException(getURI());
@@ -630,6 +2524,11 @@ public class Cache {
         }
 
 
+        private boolean isFresh() {
+            return System.currentTimeMillis() < freshUntil;
+        }
+
+
         URL getRealUrl() throws MalformedURLException {
             if (realUrl == null) {
                 realUrl = url.toURL();
@@ -639,7 +2538,93 @@ public class Cache {
 
 
         /**
-         * overwrites the existing file with the remote file.
+         * Download the file, unless another thread is already downloading
+         * it, in which case this waits for that download and shares its
+         * outcome.  Only one thread ever writes to the temp file.  If that
+         * other thread's download was cancelled, this one starts over.
+         */
+        private void downloadOnce() throws IOException {
+            while (! downloadOnceAttempt()) {
+                Cancellation.check(url.toString());
+            }
+        }
+
+
+        /**
+         *
+         * @return false if another thread's download was cancelled before
+         *      it finished.
+         */
+        private boolean downloadOnceAttempt() throws IOException {
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // It may have finished between the caller's check and
+                    // this task being registered.
+                    if (! isUpToDate()) {
+                        downloadCount.incrementAndGet();
+                        download();
+                    }
+                    return null;
+                }
+            });
+            FutureTask<Void> active = inFlight.putIfAbsent(url, task);
+            if (active == null) {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(url, task);
+                }
+                active = task;
+            } else {
+                coalescedDownloadCount.incrementAndGet();
+            }
+
+            try {
+                if (Cancellation.current() == null) {
+                    active.get();
+                } else {
+                    // Don't wait on someone else's download once this
+                    // thread's work is cancelled.
+                    while (true) {
+                        try {
+                            active.get(CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+                            break;
+                        } catch (TimeoutException e) {
+                            Cancellation.check(url.toString());
+                        }
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                InterruptedIOException ex = new InterruptedIOException(
+                        url.toString());
+                ex.initCause(e);
+                throw ex;
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof CancelledException && active != task) {
+                    return false;
+                }
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+                if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                }
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+                throw new IOException(t);
+            }
+        }
+
+
+        /**
+         * overwrites the existing file with the remote file.  Failed
+         * transfers are retried with a growing delay between attempts, and
+         * pick up from the end of what was already received when the
+         * server supports it.
          */
         protected void download() throws IOException {
             try {
@@ -660,125 +2645,640 @@ public class Cache {
                 System.out.println("Downloading file " + local + " from " + url);
 
 
-                File tempFile = new File(local.getParentFile(), local.getName() + ".tmp");
-
+                File partFile = new File(local.getParentFile(), local.getName() + PART_SUFFIX);
 
-                try {
-                    FileOutputStream out = new FileOutputStream(tempFile);
+                int retries = getTypeProperty(RETRIES_PROPERTY, type,
+                        DEFAULT_RETRIES);
+                long delay = getTypeProperty(BACKOFF_PROPERTY, type,
+                        DEFAULT_BACKOFF_MS);
+                for (int attempt = 0; ; ++attempt) {
                     try {
-                        InputStream in = openRemoteInputStream();
-                        try {
-                            byte[] buff = new byte[4096];
-                            int len;
-                            while ((len = in.read(buff, 0, 4096)) > 0) {
-                                out.write(buff, 0, len);
-                            }
-                        } finally {
-                            in.close();
-                        }
-                    } catch (FileNotFoundException e) {
-                        // could not connect to the remote site
-                        throw new RemoteConnectionException(getURI());
-                    } catch (UnknownHostException e) {
-                        // could not find the remote site
-                        throw new RemoteConnectionException(getURI());
-                    } finally {
-                        out.close();
-                    }
-
-                    // Move the temp file so it replaces the original
-                    File tempFile2 = null;
-                    if (local.exists()) {
-                        tempFile2 = new File(local.getParentFile(), local.getName() + ".tmp2");
-                        if (tempFile2.exists()) {
-                            if (! tempFile2.delete()) {
-                                warn("could not delete temporary file " +
-                                        tempFile2);
-                            }
+                        limitedDownloadAttempt(partFile);
+                        return;
+                    } catch (CancelledException e) {
+                        // not a failure; the old copy, if any, stays
+                        throw e;
+                    } catch (IOException e) {
+                        if (partialValidator == null) {
+                            // Nothing to resume it with.
+                            discardPartial(partFile);
                         }
-                        if (! local.renameTo(tempFile2)) {
-                            // Could not perform the rename for some reason.
-                            // Just overwrite the local file.
-                            tempFile2 = null;
-                            if (! local.delete()) {
-                                attemptReload = true;
-                                warn("could not overwrite cached file " +
-                                    local + "; the cache will not be updated");
-                                return;
-                            }
+                        // A stalled connection times out, and is resumed
+                        // like any other failure; only a real interrupt
+                        // stops the retries.
+                        if (attempt >= retries ||
+                                e instanceof RemoteConnectionException ||
+                                (e instanceof InterruptedIOException &&
+                                ! (e instanceof SocketTimeoutException))) {
+                            downloadFailed(e);
+                            return;
                         }
+                        stats.recordRetry(url);
+                        warn("retrying " + url + " after " + delay +
+                                " ms: " + e.getMessage());
                     }
-                    if (tempFile.renameTo(local)) {
-                        attemptReload = false;
-                        resourceLoaded(this);
-                    } else {
-                        if (! tempFile.delete()) {
-                            warn("Could not remove temporary file " + tempFile);
-                        }
-                        attemptReload = true;
-                        error(new IOException(
-                                LauncherBundle.message("cache.rename.error",
-                                tempFile.toString(), local.toString())));
+                    try {
+                        Cancellation.sleep(url.toString(), delay);
+                    } catch (CancelledException e) {
+                        // the part kept for resuming goes as well
+                        long kept = partFile.length();
+                        discardPartial(partFile);
+                        stats.recordCancelled(url, kept);
+                        throw e;
+                    } catch (InterruptedException e) {
+                        InterruptedIOException ex =
+                                new InterruptedIOException(url.toString());
+                        ex.initCause(e);
+                        downloadFailed(ex);
+                        return;
+                    }
+                    delay = Math.min(delay * 2L, MAX_BACKOFF_MS);
+                }
+            } catch (SecurityException e) {
+                error(e);
+            }
+        }
+
+        private void downloadFailed(IOException e) throws NoCacheException {
+            stats.recordFailure(url);
+            markReload(true);
+
+            if (! isAvailable()) {
+                // no local cached copy
+                throw new NoCacheException(getURI());
+            }
+
+            error(e);
+        }
+
+        /**
+         * Make a single request for the file, once the host has a
+         * connection free.
+         *
+         * @param partFile where the body is written until it's complete.
+         */
+        private void limitedDownloadAttempt(File partFile)
+                throws IOException {
+            HostConnectionLimiter limiter = connectionLimiter;
+            String host = url.getHost();
+            if (limiter == null || host == null) {
+                downloadAttempt(partFile);
+                return;
+            }
+            try {
+                while (! limiter.tryAcquire(host, CANCEL_POLL_MS)) {
+                    checkCancelled(Cancellation.current(), partFile, 0L);
+                }
+            } catch (InterruptedException e) {
+                InterruptedIOException ex =
+                        new InterruptedIOException(url.toString());
+                ex.initCause(e);
+                throw ex;
+            }
+            try {
+                downloadAttempt(partFile);
+            } finally {
+                limiter.release(host);
+            }
+        }
+
+        /**
+         * Make a single request for the file.  If part of it was already
+         * received, only the rest is asked for; if the server's copy has
+         * changed since then, it sends the whole file instead.
+         *
+         * @param partFile where the body is written until it's complete.
+         */
+        private void downloadAttempt(File partFile) throws IOException {
+            URLConnection conn;
+            InputStream in;
+            long start = 0L;
+            Cancellation cancellation = Cancellation.current();
+            checkCancelled(cancellation, partFile, 0L);
+            HostRateLimiter limiter = requestLimiter;
+            if (limiter != null && url.getHost() != null) {
+                try {
+                    limiter.acquire(url.getHost());
+                } catch (InterruptedException e) {
+                    InterruptedIOException ex =
+                            new InterruptedIOException(url.toString());
+                    ex.initCause(e);
+                    throw ex;
+                }
+            }
+            long requested = System.nanoTime();
+            try {
+                conn = openRemoteConnection(partFile);
+                if (conn instanceof HttpURLConnection) {
+                    int code = ((HttpURLConnection) conn).getResponseCode();
+                    stats.recordFirstByte(url, System.nanoTime() - requested);
+                    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        // The cached copy is still current; only its
+                        // freshness changes.
+                        conn.getInputStream().close();
+                        discardPartial(partFile);
+                        notModifiedCount.incrementAndGet();
+                        revalidated(conn, false);
+                        return;
                     }
-                    if (tempFile2 != null && tempFile2.exists()) {
-                        // Ignore status message.
-                        if (! tempFile2.delete()) {
-                            warn("Could not remove temporary file " +
-                                    tempFile2);
+                    if (code == HttpURLConnection.HTTP_PARTIAL) {
+                        start = getRangeStart(conn);
+                        if (start != partFile.length()) {
+                            ((HttpURLConnection) conn).disconnect();
+                            discardPartial(partFile);
+                            throw new IOException("unexpected range " +
+                                    conn.getHeaderField("Content-Range") +
+                                    " from " + url);
                         }
+                    } else if (code == HTTP_RANGE_NOT_SATISFIABLE) {
+                        // The partial file doesn't match the server's copy.
+                        ((HttpURLConnection) conn).disconnect();
+                        discardPartial(partFile);
+                        throw new IOException("could not resume " + url);
                     }
+                }
+                in = conn.getInputStream();
+                if (cancellation != null && cancellation.isCancelled()) {
+                    in.close();
+                    checkCancelled(cancellation, partFile, 0L);
+                }
+            } catch (FileNotFoundException e) {
+                // could not connect to the remote site
+                throw new RemoteConnectionException(getURI());
+            } catch (UnknownHostException e) {
+                // could not find the remote site
+                throw new RemoteConnectionException(getURI());
+            }
+            MessageDigest md = newDigest();
+            if (start > 0L) {
+                digestFile(partFile, start, md);
+            }
 
+            // Only keep the validator in the index while the partial file
+            // isn't being written, so a crash in the middle can't leave a
+            // resumable-looking file with holes in it.
+            if (partialValidator != null) {
+                partialValidator = null;
+                resourceUpdated(this);
+            }
+            String encoding = conn.getContentEncoding();
+            CountingInputStream wire = new CountingInputStream(in);
+            InputStream body = wire;
+            try {
+                body = decodeBody(wire, encoding);
+                // A compressed body's length says nothing about
+                // the decoded file.
+                long length = conn.getContentLengthLong();
+                long expected = encoding == null &&
+                        length >= 0L ? start + length : -1L;
+                transferToFile(body, partFile, start, expected, md,
+                        cancellation);
+            } catch (CancelledException e) {
+                // Whatever was received, including any earlier part, is
+                // thrown away.
+                checkCancelled(cancellation, partFile,
+                        start + wire.getCount());
+                throw e;
+            } catch (IOException e) {
+                // A byte range can't pick up part way through a
+                // compressed body.
+                String validator = encoding == null
+                        ? getResumeValidator(conn) : null;
+                if (validator != null && partFile.length() > 0L) {
+                    partialValidator = validator;
+                    resourceUpdated(this);
+                }
+                throw e;
+            } finally {
+                body.close();
+                wireBytes.addAndGet(wire.getCount());
+            }
+            stats.recordDownload(url, type, System.nanoTime() - requested,
+                    wire.getCount());
+
+            // Replace the original in one step, so readers see
+            // either the old file or the new one, never neither.
+            String oldDigest;
+            String newDigest = toHex(md.digest());
+            long oldSize;
+            synchronized (fileLock) {
+                try {
+                    installFile(partFile, local);
                 } catch (IOException e) {
-                    attemptReload = true;
-                    if (! tempFile.delete()) {
-                        warn("Could not remove temporary file: " +
-                                tempFile);
+                    // Most likely the old file is open on Windows.
+                    if (! partFile.delete()) {
+                        warn("Could not remove temporary file " + partFile);
                     }
+                    markReload(true);
+                    error(new IOException(
+                            LauncherBundle.message("cache.rename.error",
+                            partFile.toString(), local.toString()), e));
+                    return;
+                }
+                hotTier.invalidate(url);
+                oldSize = Math.max(size, 0L);
+                size = local.length();
+                // Resumed parts are never compressed.
+                wireSize = start + wire.getCount();
+                fileTime = local.lastModified();
+                oldDigest = digest;
+                digest = newDigest;
+            }
+            cachedBytesChanged(size - oldSize);
+            revalidated(conn, true);
+            if (! newDigest.equals(oldDigest)) {
+                // Only tell the listeners when there's something new.
+                resourceLoaded(this);
+            }
+        }
 
-                    if (! getLocal().exists()) {
-                        // no local cached copy
-                        throw new NoCacheException(getURI());
-                    }
+        /**
+         * If the download was cancelled, discard what it received, and
+         * stop it.
+         *
+         * @param wasted bytes received for nothing.
+         */
+        private void checkCancelled(Cancellation cancellation, File partFile,
+                long wasted) throws CancelledException {
+            if (cancellation != null && cancellation.isCancelled()) {
+                discardPartial(partFile);
+                stats.recordCancelled(url, wasted);
+                throw new CancelledException(url.toString());
+            }
+        }
+
+        private void discardPartial(File partFile) {
+            if (partFile.exists() && ! partFile.delete()) {
+                warn("Could not remove temporary file: " + partFile);
+            }
+            if (partialValidator != null) {
+                partialValidator = null;
+                resourceUpdated(this);
+            }
+        }
 
-                    error(e);
+        /**
+         * Write the stream to the file through a file channel, in large
+         * direct buffer chunks, starting at the given position.  If the
+         * final length is known, the file is sized up front and a body of
+         * any other length is treated as a failed download.  Whatever
+         * happens, the file is left holding exactly the bytes received.
+         *
+         * @param in remote stream
+         * @param f file to write
+         * @param start where in the file the stream's first byte goes.
+         * @param expected the expected final length, or -1 if not known.
+         * @param md digest updated with every byte written.
+         * @param cancellation checked after every read, or null.
+         * @throws CancelledException if cancelled, or if it's cancelled while
+         *      held back by the thread's {@link ByteRateLimiter}.
+         */
+        private void transferToFile(InputStream in, File f, long start,
+                long expected, MessageDigest md, Cancellation cancellation)
+                throws IOException {
+            ReadableByteChannel src = Channels.newChannel(in);
+            ByteRateLimiter limiter = ByteRateLimiter.current();
+            ByteBuffer buff = TRANSFER_BUFFER.get();
+            buff.clear();
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            long pos = start;
+            try {
+                FileChannel out = raf.getChannel();
+                if (expected > 0L) {
+                    raf.setLength(expected);
+                }
+                boolean eof = false;
+                while (! eof) {
+                    int count;
+                    try {
+                        count = src.read(buff);
+                        eof = count < 0;
+                    } catch (IOException e) {
+                        // Keep what did arrive, so that the next attempt
+                        // can continue from it.
+                        pos = writeBuffer(buff, out, pos, md);
+                        throw e;
+                    }
+                    if (cancellation != null && cancellation.isCancelled()) {
+                        throw new CancelledException(url.toString());
+                    }
+                    if (limiter != null && count > 0) {
+                        limiter.acquire(url.toString(), count);
+                    }
+                    if (eof || ! buff.hasRemaining()) {
+                        pos = writeBuffer(buff, out, pos, md);
+                    }
+                }
+                if (expected >= 0L && pos != expected) {
+                    throw new IOException("expected " + expected +
+                            " bytes from " + url + ", but read " + pos);
+                }
+            } finally {
+                downloadedBytes.addAndGet(pos - start);
+                try {
+                    raf.setLength(pos);
                 } finally {
-                    //System.out.println("Downloaded " + url);
+                    raf.close();
+                }
+            }
+        }
+
+        /**
+         * Write out the filled part of the buffer, and empty it.
+         *
+         * @return the file position after the written bytes.
+         */
+        private long writeBuffer(ByteBuffer buff, FileChannel out, long pos,
+                MessageDigest md) throws IOException {
+            buff.flip();
+            md.update(buff);
+            buff.rewind();
+            while (buff.hasRemaining()) {
+                pos += out.write(buff, pos);
+            }
+            buff.clear();
+            return pos;
+        }
+
+        private void markReload(boolean reload) {
+            if (attemptReload != reload) {
+                attemptReload = reload;
+                resourceUpdated(this);
+            }
+        }
+
+        /**
+         * Record the validators and freshness lifetime sent by the server,
+         * and mark the local copy as current.
+         *
+         * @param conn the completed connection
+         * @param replace true if the response carried a new body, so any
+         *      validator it does not mention no longer applies.
+         */
+        private void revalidated(URLConnection conn, boolean replace) {
+            String tag = conn.getHeaderField("ETag");
+            if (tag != null || replace) {
+                etag = tag;
+            }
+            long modified = conn.getLastModified();
+            if (modified > 0L || replace) {
+                lastModified = modified;
+            }
+            freshUntil = getFreshUntil(conn);
+            attemptReload = false;
+            resourceUpdated(this);
+        }
+
+        /**
+         * Check the cached file against what was recorded when it was
+         * downloaded.  Unless asked to, the file is only hashed if its
+         * length or modification time has changed.
+         *
+         * A file that no longer matches is quarantined.
+         *
+         * @param always hash the file even if it looks unchanged.
+         * @return false if the file no longer matched the download.
+         */
+        boolean verify(boolean always) {
+            String checkedDigest;
+            long checkedSize;
+            long checkedTime;
+            synchronized (fileLock) {
+                checkedDigest = digest;
+                checkedSize = size;
+                checkedTime = fileTime;
+            }
+            if (checkedDigest == null) {
+                // Downloaded before digests were kept.
+                return true;
+            }
+            if (bundle != null && ! local.exists() && getBundled() != null) {
+                // The bundle checks its own copy.
+                return true;
+            }
+            // Hashing can take a while, so it's done without the lock.
+            long time = checkFile(local, checkedSize, checkedTime,
+                    checkedDigest, always);
+            return checked(time, checkedDigest, checkedSize, checkedTime);
+        }
+
+        /**
+         * Act on the result of a check made against the given recorded
+         * values.  If a download replaced the file since then, the check
+         * was of the old file, and is ignored.
+         *
+         * @param time the file's time from {@link #checkFile}, or -1 if it
+         *      didn't match.
+         * @return false if the file was quarantined.
+         */
+        boolean checked(long time, String checkedDigest, long checkedSize,
+                long checkedTime) {
+            synchronized (fileLock) {
+                if (! checkedDigest.equals(digest) || size != checkedSize ||
+                        fileTime != checkedTime) {
+                    return true;
+                }
+                if (time < 0L) {
+                    quarantine();
+                    return false;
+                }
+                if (time != fileTime) {
+                    // Touched, but the same contents.
+                    fileTime = time;
+                    resourceUpdated(this);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Move a corrupt file out of the way, so the next read downloads
+         * it again.  It's kept in the quarantine directory for a look.
+         * Called with the file lock held.
+         */
+        private void quarantine() {
+            warn("cached file " + local + " for " + url +
+                    " is corrupt; it will be downloaded again");
+            File dir = new File(cacheDir, QUARANTINE_DIR);
+            try {
+                if (! dir.isDirectory() && ! dir.mkdirs()) {
+                    throw new IOException("could not create " + dir);
+                }
+                installFile(local, new File(dir, local.getName()));
+            } catch (IOException e) {
+                if (local.exists() && ! local.delete()) {
+                    warn("could not remove corrupt file " + local);
                 }
-            } catch (SecurityException e) {
-                error(e);
             }
+            hotTier.invalidate(url);
+            cachedBytesChanged(-Math.max(size, 0L));
+            etag = null;
+            lastModified = 0L;
+            freshUntil = 0L;
+            size = 0L;
+            fileTime = 0L;
+            digest = null;
+            attemptReload = true;
+            resourceUpdated(this);
+            corruptCount.incrementAndGet();
+        }
+
+        /**
+         * Remove the downloaded copy, keeping the entry itself so the next
+         * read downloads it again.
+         *
+         * @return true if the file was removed.
+         */
+        boolean evictContent() {
+            synchronized (fileLock) {
+                if (local.exists() && ! local.delete()) {
+                    // Most likely open for reading on Windows.
+                    warn("could not evict cached file " + local);
+                    return false;
+                }
+                hotTier.invalidate(url);
+                etag = null;
+                lastModified = 0L;
+                freshUntil = 0L;
+                size = 0L;
+                fileTime = 0L;
+                digest = null;
+                resourceUpdated(this);
+            }
+            return true;
         }
 
         protected InputStream openRemoteInputStream() throws IOException {
             return getRealUrl().openStream();
         }
 
+        /**
+         * Open the connection for a download.  If there is a local copy,
+         * the request is made conditional on the server's copy having
+         * changed since it was stored.  If part of the file was already
+         * received, only the rest is asked for, as long as the server's
+         * copy is still the one it came from.
+         */
+        protected URLConnection openRemoteConnection(File partFile)
+                throws IOException {
+            URLConnection conn = getRealUrl().openConnection();
+            conn.setConnectTimeout(getTypeProperty(CONNECT_TIMEOUT_PROPERTY,
+                    type, DEFAULT_CONNECT_TIMEOUT_MS));
+            conn.setReadTimeout(getTypeProperty(READ_TIMEOUT_PROPERTY, type,
+                    DEFAULT_READ_TIMEOUT_MS));
+            if (! (conn instanceof HttpURLConnection)) {
+                return conn;
+            }
+            if (isAvailable()) {
+                String tag = etag;
+                if (tag != null) {
+                    conn.setRequestProperty("If-None-Match", tag);
+                }
+                long modified = lastModified;
+                if (modified > 0L) {
+                    conn.setIfModifiedSince(modified);
+                }
+                if (tag != null || modified > 0L) {
+                    stats.revalidation();
+                }
+            }
+            String validator = partialValidator;
+            long partLength = partFile.length();
+            if (validator != null && partLength > 0L) {
+                conn.setRequestProperty("Range", "bytes=" + partLength + "-");
+                conn.setRequestProperty("If-Range", validator);
+            } else {
+                // The partial file holds decoded bytes, so only a whole
+                // body may be compressed.
+                conn.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            }
+            return conn;
+        }
+
         protected File getLocal() {
             return local;
         }
 
 
         JSONObject toJSon() {
+            return toJSon(true);
+        }
+
+        JSONObject toJSon(boolean withChildren) {
             JSONObject obj = new JSONObject();
             obj.put("url", url.toString());
             obj.put("local", getAsRelativeString(local));
             obj.put("type", type);
             obj.put("old", attemptReload);
-            JSONArray kids = new JSONArray();
-            for (URI kid: children) {
-                kids.put(kid.toString());
+            if (etag != null) {
+                obj.put(ETAG_ATTRIBUTE, etag);
+            }
+            if (lastModified > 0L) {
+                obj.put(MODIFIED_ATTRIBUTE, lastModified);
+            }
+            if (freshUntil > 0L) {
+                obj.put(FRESH_ATTRIBUTE, freshUntil);
+            }
+            if (size >= 0L) {
+                obj.put(SIZE_ATTRIBUTE, size);
+            }
+            if (wireSize >= 0L) {
+                obj.put(WIRE_SIZE_ATTRIBUTE, wireSize);
+            }
+            obj.put(ACCESS_ATTRIBUTE, lastAccess);
+            if (partialValidator != null) {
+                obj.put(PARTIAL_ATTRIBUTE, partialValidator);
+            }
+            if (digest != null) {
+                obj.put(FILE_TIME_ATTRIBUTE, fileTime);
+                obj.put(DIGEST_ATTRIBUTE, digest);
+            }
+            if (withChildren) {
+                JSONArray kids = new JSONArray();
+                for (URI kid: graph.getChildren(id)) {
+                    kids.put(kid.toString());
+                }
+                obj.put("children", kids);
             }
-            obj.put("children", kids);
             return obj;
         }
 
-        boolean addChild(Resource res) {
-            URI kid = res.getURI();
-            if (children.contains(kid)) {
-                return false;
+        void writeTo(CacheIndex.Writer w) {
+            List<URI> childUris = graph.getChildren(id);
+            List<String> kids = new ArrayList<String>(childUris.size());
+            for (URI kid: childUris) {
+                kids.add(kid.toString());
             }
-            children.add(kid);
-            return true;
+            Map<String, String> attrs = new HashMap<String, String>();
+            if (etag != null) {
+                attrs.put(ETAG_ATTRIBUTE, etag);
+            }
+            if (lastModified > 0L) {
+                attrs.put(MODIFIED_ATTRIBUTE, Long.toString(lastModified));
+            }
+            if (freshUntil > 0L) {
+                attrs.put(FRESH_ATTRIBUTE, Long.toString(freshUntil));
+            }
+            if (size >= 0L) {
+                attrs.put(SIZE_ATTRIBUTE, Long.toString(size));
+            }
+            if (wireSize >= 0L) {
+                attrs.put(WIRE_SIZE_ATTRIBUTE, Long.toString(wireSize));
+            }
+            attrs.put(ACCESS_ATTRIBUTE, Long.toString(lastAccess));
+            if (partialValidator != null) {
+                attrs.put(PARTIAL_ATTRIBUTE, partialValidator);
+            }
+            if (digest != null) {
+                attrs.put(FILE_TIME_ATTRIBUTE, Long.toString(fileTime));
+                attrs.put(DIGEST_ATTRIBUTE, digest);
+            }
+            w.add(url.toString(), getAsRelativeString(local), type,
+                    attemptReload, kids, attrs);
+        }
+
+        boolean addChild(URI child) {
+            return graph.addChild(id, graph.getId(child));
         }
 
 
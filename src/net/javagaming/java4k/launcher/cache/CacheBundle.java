@@ -0,0 +1,521 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import net.javagaming.java4k.launcher.Security;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The whole cache as one file: a {@link CacheIndex} of every entry, with
+ * the offset and length of its contents, followed by the contents
+ * themselves.  A bundle is written in a single pass, and can be copied to
+ * another machine instead of the cache directory.
+ * <p/>
+ * The cache memory maps a bundle found in its directory, or named by
+ * {@link #BUNDLE_PROPERTY}, and serves entries straight out of it until
+ * they are downloaded again, so nothing needs to be unpacked before the
+ * launcher can run offline.  Each entry's contents are checked against
+ * its SHA-256 the first time they are read.
+ * <p/>
+ * Layout (all big-endian):
+ * <pre>
+ *   header     magic, format version, index length
+ *   index      a {@link CacheIndex}, with "offset" and "length" attributes
+ *              on the entries that have contents
+ *   data       the contents, at their offset from the end of the index
+ * </pre>
+ * The bundle is mapped as one buffer, so it can't be larger than 2 GB.
+ * <p/>
+ * Run as a program, it exports the current cache to a bundle, or imports
+ * a bundle into the cache directory:
+ * <pre>
+ *   CacheBundle export (bundle file)
+ *   CacheBundle import (bundle file)
+ * </pre>
+ *
+ * @author Groboclown
+ */
+public class CacheBundle {
+    /**
+     * System property for a bundle file to serve cached files from, instead
+     * of the one in the cache directory.
+     */
+    public static final String BUNDLE_PROPERTY = "launcher.cache.bundle";
+
+    /**
+     * Name of the bundle file in the cache directory.
+     */
+    static final String BUNDLE_FILE = "cache.bundle";
+
+    private static final int MAGIC = 0x4A344B42;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final String OFFSET_ATTRIBUTE = "offset";
+    private static final String LENGTH_ATTRIBUTE = "length";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+    private final ByteBuffer buff;
+    private final CacheIndex index;
+    private final int dataPos;
+
+    // Entries whose contents were hashed, and those that didn't match.
+    private final BitSet checked = new BitSet();
+    private final BitSet corrupt = new BitSet();
+
+
+    private CacheBundle(File file, ByteBuffer buff) throws IOException {
+        this.file = file;
+        this.buff = buff;
+        if (buff.capacity() < HEADER_SIZE || buff.getInt(0) != MAGIC) {
+            throw new IOException("not a cache bundle");
+        }
+        if (buff.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("cache bundle has version " +
+                    buff.getInt(4) + ", expected " + FORMAT_VERSION);
+        }
+        long indexLength = buff.getLong(8);
+        if (indexLength < 0L ||
+                HEADER_SIZE + indexLength > buff.capacity()) {
+            throw new IOException("cache bundle is truncated");
+        }
+        dataPos = HEADER_SIZE + (int) indexLength;
+        ByteBuffer dup = buff.duplicate();
+        dup.position(HEADER_SIZE);
+        dup.limit(dataPos);
+        index = CacheIndex.read(dup.slice());
+    }
+
+
+    /**
+     * Map the bundle into memory.  Only the headers are read.
+     *
+     * @param f bundle file
+     * @return the bundle
+     * @throws IOException if the file is not a bundle of the current
+     *      format version.
+     */
+    static CacheBundle open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("cache bundle is too large to map");
+            }
+            return new CacheBundle(f, channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+
+    File getFile() {
+        return file;
+    }
+
+
+    CacheIndex getIndex() {
+        return index;
+    }
+
+
+    /**
+     * Find the contents of an entry, if they are the ones the caller
+     * expects.
+     *
+     * @param uri the URI string, as stored.
+     * @param digest the SHA-256 the contents must have.
+     * @return the contents, positioned at their start, or null if the
+     *      bundle doesn't hold them.
+     */
+    ByteBuffer getData(String uri, String digest) {
+        int entry = index.find(uri);
+        if (entry < 0 || digest == null) {
+            return null;
+        }
+        Map<String, String> attrs = index.getAttributes(entry);
+        if (! digest.equals(attrs.get(Cache.DIGEST_ATTRIBUTE))) {
+            return null;
+        }
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(attrs.get(OFFSET_ATTRIBUTE));
+            length = Long.parseLong(attrs.get(LENGTH_ATTRIBUTE));
+        } catch (NumberFormatException e) {
+            // No contents were exported with this entry.
+            return null;
+        }
+        if (offset < 0L || length < 0L ||
+                dataPos + offset + length > buff.capacity()) {
+            return null;
+        }
+        ByteBuffer ret = buff.duplicate();
+        ret.position(dataPos + (int) offset);
+        ret.limit(dataPos + (int) (offset + length));
+        ret = ret.slice();
+        if (! check(entry, uri, ret, digest)) {
+            return null;
+        }
+        return ret;
+    }
+
+
+    private boolean check(int entry, String uri, ByteBuffer data,
+            String digest) {
+        synchronized (checked) {
+            if (checked.get(entry)) {
+                return ! corrupt.get(entry);
+            }
+        }
+        // Two threads may both hash it; that's cheaper than holding the
+        // lock while reading the mapping.
+        MessageDigest md = Cache.newDigest();
+        md.update(data.duplicate());
+        boolean ok = digest.equals(Cache.toHex(md.digest()));
+        if (! ok) {
+            Cache.warn("bundled copy of " + uri + " in " + file +
+                    " is corrupt; it will be downloaded");
+        }
+        synchronized (checked) {
+            checked.set(entry);
+            if (! ok) {
+                corrupt.set(entry);
+            }
+        }
+        return ok;
+    }
+
+
+    /**
+     *
+     * @param data contents from {@link #getData(String, String)}
+     * @return a stream over the contents, reading straight from the
+     *      mapping.
+     */
+    static InputStream newInputStream(ByteBuffer data) {
+        return new BufferInputStream(data.duplicate());
+    }
+
+
+    /**
+     * Copy a bundle into the cache directory, where the cache will find it
+     * the next time the launcher starts.  The launcher shouldn't be running.
+     *
+     * @param source bundle to copy
+     * @return the installed bundle file
+     * @throws IOException if the source isn't a bundle, or couldn't be
+     *      copied.
+     */
+    public static File importBundle(File source) throws IOException {
+        // Fail before replacing anything if it isn't a bundle.
+        open(source);
+
+        File dir = Security.getCacheDir();
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            throw new IOException("could not create cache dir " + dir);
+        }
+        File target = new File(dir, BUNDLE_FILE);
+        File temp = new File(dir, BUNDLE_FILE + TEMP_SUFFIX);
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel src = in.getChannel();
+                FileChannel dest = out.getChannel();
+                long size = src.size();
+                long pos = 0L;
+                while (pos < size) {
+                    pos += src.transferTo(pos, size - pos, dest);
+                }
+                dest.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        Cache.installFile(temp, target);
+        return target;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CacheBundle (export | import) (bundle file)");
+            System.exit(1);
+        }
+        File f = new File(args[1]);
+        if ("export".equals(args[0])) {
+            int count = Cache.getInstance().exportBundle(f);
+            System.out.println("Exported " + count + " cached files (" +
+                    f.length() + " bytes) to " + f);
+        } else if ("import".equals(args[0])) {
+            File target = importBundle(f);
+            System.out.println("Imported " + f + " as " + target);
+        } else {
+            System.err.println("Unknown command " + args[0]);
+            System.exit(1);
+        }
+    }
+
+
+
+    /**
+     * Collects the cache entries, then streams them and their contents
+     * into a bundle.  Entries are only gathered while the cache is locked;
+     * the files are read afterwards.  The first entry added for a URI wins.
+     */
+    static class Writer extends CacheIndex.Writer {
+        private final Cache cache;
+        private final Set<String> uris = new HashSet<String>();
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private boolean fromBundle = false;
+
+
+        Writer(Cache cache) {
+            this.cache = cache;
+        }
+
+
+        /**
+         * Entries added after this only have contents in the mounted
+         * bundle; their local file names belong to whoever exported it.
+         */
+        void startBundledEntries() {
+            fromBundle = true;
+        }
+
+
+        @Override
+        void add(String uri, String local, String type, boolean reload,
+                Collection<String> kids, Map<String, String> attrs) {
+            if (uris.add(uri)) {
+                Map<String, String> copy = new HashMap<String, String>(attrs);
+                copy.remove(OFFSET_ATTRIBUTE);
+                copy.remove(LENGTH_ATTRIBUTE);
+                entries.add(new Entry(uri, local, type, reload,
+                        new ArrayList<String>(kids), copy, fromBundle));
+            }
+        }
+
+
+        /**
+         * Write the bundle, replacing the file only once it is complete.
+         *
+         * @param f destination file
+         * @return how many entries had their contents written.
+         * @throws IOException if a file couldn't be read, or changed while
+         *      it was being copied, or the bundle couldn't be written.
+         */
+        int write(File f) throws IOException {
+            // Lay out the contents first, so the index can go in front.
+            long offset = 0L;
+            int count = 0;
+            for (Entry e: entries) {
+                File local = e.bundled ? null : cache.getRelativeFile(e.local);
+                String digest = e.attrs.get(Cache.DIGEST_ATTRIBUTE);
+                if (local != null && local.isFile()) {
+                    e.file = local;
+                    e.length = local.length();
+                    if (digest == null) {
+                        // Downloaded before digests were kept.
+                        MessageDigest md = Cache.newDigest();
+                        Cache.digestFile(local, e.length, md);
+                        e.attrs.put(Cache.DIGEST_ATTRIBUTE,
+                                Cache.toHex(md.digest()));
+                    }
+                } else {
+                    // Still served from the bundle this cache started with.
+                    e.data = cache.getBundled(e.uri, digest);
+                    if (e.data != null) {
+                        e.length = e.data.remaining();
+                    }
+                }
+                if (e.file != null || e.data != null) {
+                    e.attrs.put(OFFSET_ATTRIBUTE, Long.toString(offset));
+                    e.attrs.put(LENGTH_ATTRIBUTE, Long.toString(e.length));
+                    offset += e.length;
+                    ++count;
+                }
+                super.add(e.uri, e.local, e.type, e.reload, e.kids, e.attrs);
+            }
+            ByteBuffer indexBuff = toBuffer(0L, 0);
+            if (HEADER_SIZE + indexBuff.remaining() + offset >
+                    Integer.MAX_VALUE) {
+                throw new IOException("cache is too large for a bundle");
+            }
+
+            File temp = new File(f.getAbsoluteFile().getParentFile(),
+                    f.getName() + TEMP_SUFFIX);
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                FileChannel out = fos.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(FORMAT_VERSION);
+                header.putLong(indexBuff.remaining());
+                header.flip();
+                writeFully(out, header);
+                writeFully(out, indexBuff);
+                for (Entry e: entries) {
+                    if (e.file != null) {
+                        copy(e.file, e.length, out);
+                    } else if (e.data != null) {
+                        writeFully(out, e.data);
+                    }
+                }
+                out.force(true);
+            } finally {
+                fos.close();
+            }
+            Cache.installFile(temp, f);
+            return count;
+        }
+
+
+        private static void writeFully(FileChannel out, ByteBuffer buff)
+                throws IOException {
+            while (buff.hasRemaining()) {
+                out.write(buff);
+            }
+        }
+
+
+        private static void copy(File f, long length, FileChannel out)
+                throws IOException {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel src = in.getChannel();
+                if (src.size() != length) {
+                    throw new IOException(f +
+                            " changed while it was being exported");
+                }
+                long pos = 0L;
+                while (pos < length) {
+                    long n = src.transferTo(pos, length - pos, out);
+                    if (n <= 0L) {
+                        throw new IOException("could not copy " + f);
+                    }
+                    pos += n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+
+    private static class Entry {
+        final String uri;
+        final String local;
+        final String type;
+        final boolean reload;
+        final List<String> kids;
+        final Map<String, String> attrs;
+        final boolean bundled;
+        File file;
+        ByteBuffer data;
+        long length;
+
+        Entry(String uri, String local, String type, boolean reload,
+                List<String> kids, Map<String, String> attrs,
+                boolean bundled) {
+            this.uri = uri;
+            this.local = local;
+            this.type = type;
+            this.reload = reload;
+            this.kids = kids;
+            this.attrs = attrs;
+            this.bundled = bundled;
+        }
+    }
+
+
+    /**
+     * Reads a buffer without copying it first.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buff;
+
+        BufferInputStream(ByteBuffer buff) {
+            this.buff = buff;
+        }
+
+        @Override
+        public int read() {
+            if (! buff.hasRemaining()) {
+                return -1;
+            }
+            return buff.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (! buff.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buff.remaining());
+            buff.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0L, Math.min(n, buff.remaining()));
+            buff.position(buff.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buff.remaining();
+        }
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary snapshot of the cache index.  The file is memory mapped, and
+ * entries are only decoded when they are asked for, so startup doesn't
+ * need to parse every cached resource.
+ * <p/>
+ * Layout (all big-endian):
+ * <pre>
+ *   header     magic, format version, journal generation, last file index,
+ *              string count, entry count, hash size, child count,
+ *              attribute count, string data length
+ *   strings    int[string count] offsets into the string data
+ *   entries    ENTRY_SIZE bytes each: uri string, local file id, type code,
+ *              flags, child start / count, attribute start / count
+ *   hash       int[hash size] entry + 1, open addressed by uri hash
+ *   children   int[child count] uri string ids
+ *   attributes int[attribute count * 2] key / value string ids
+ *   data       each string as an int length plus its UTF-8 bytes
+ *   trailer    magic, so a partial write is never mistaken for an index
+ * </pre>
+ *
+ * @author Groboclown
+ */
+final class CacheIndex {
+    static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x4A344B49;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 4 + 4 + 4;
+    private static final int ENTRY_SIZE = 4 + 4 + 1 + 1 + 2 + 4 + 4 + 4 + 4;
+    private static final int FLAG_RELOAD = 0x01;
+    private static final int TYPE_OTHER = 0xff;
+    private static final String[] TYPES = {
+            "static", "http", "static-volatile", "volatile"
+    };
+    private static final String LOCAL_ATTRIBUTE = "local";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buff;
+    private final long journalGeneration;
+    private final int lastFileIndex;
+    private final int stringCount;
+    private final int entryCount;
+    private final int hashSize;
+    private final int stringsPos;
+    private final int entriesPos;
+    private final int hashPos;
+    private final int childrenPos;
+    private final int attributesPos;
+    private final int dataPos;
+    private final BitSet materialized = new BitSet();
+
+
+    private CacheIndex(ByteBuffer buff) throws IOException {
+        this.buff = buff;
+        if (buff.capacity() < HEADER_SIZE + 4 || buff.getInt(0) != MAGIC ||
+                buff.getInt(buff.capacity() - 4) != MAGIC) {
+            throw new IOException("not a complete cache index");
+        }
+        if (buff.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("cache index has version " +
+                    buff.getInt(4) + ", expected " + FORMAT_VERSION);
+        }
+        journalGeneration = buff.getLong(8);
+        lastFileIndex = buff.getInt(16);
+        stringCount = buff.getInt(20);
+        entryCount = buff.getInt(24);
+        hashSize = buff.getInt(28);
+        int childCount = buff.getInt(32);
+        int attributeCount = buff.getInt(36);
+        int dataLength = buff.getInt(40);
+
+        stringsPos = HEADER_SIZE;
+        entriesPos = stringsPos + 4 * stringCount;
+        hashPos = entriesPos + ENTRY_SIZE * entryCount;
+        childrenPos = hashPos + 4 * hashSize;
+        attributesPos = childrenPos + 4 * childCount;
+        dataPos = attributesPos + 8 * attributeCount;
+        if (dataPos + dataLength + 4 != buff.capacity()) {
+            throw new IOException("cache index has the wrong size");
+        }
+    }
+
+
+    /**
+     * Map the index file into memory.  Only the header is read.
+     *
+     * @param f index file
+     * @return the index
+     * @throws IOException if the file is not a complete index of the
+     *      current format version.
+     */
+    static CacheIndex load(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return new CacheIndex(buff);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Read an index held in part of a larger buffer, such as a
+     * {@link CacheBundle}.
+     *
+     * @param buff the index, from position 0 to its capacity.
+     * @return the index
+     * @throws IOException if the buffer is not a complete index of the
+     *      current format version.
+     */
+    static CacheIndex read(ByteBuffer buff) throws IOException {
+        return new CacheIndex(buff);
+    }
+
+
+    long getJournalGeneration() {
+        return journalGeneration;
+    }
+
+    int getLastFileIndex() {
+        return lastFileIndex;
+    }
+
+    int size() {
+        return entryCount;
+    }
+
+
+    /**
+     * Find the entry for the given URI without decoding any other entry.
+     *
+     * @param uri the URI string, as stored.
+     * @return the entry id, or -1 if not in the index.
+     */
+    int find(String uri) {
+        if (hashSize <= 0) {
+            return -1;
+        }
+        byte[] key = uri.getBytes(UTF8);
+        int slot = spread(uri.hashCode()) & (hashSize - 1);
+        while (true) {
+            int entry = buff.getInt(hashPos + 4 * slot) - 1;
+            if (entry < 0) {
+                return -1;
+            }
+            if (stringEquals(getEntryInt(entry, 0), key)) {
+                return entry;
+            }
+            slot = (slot + 1) & (hashSize - 1);
+        }
+    }
+
+
+    /**
+     * Record that the entry now lives as an object in the cache, so that
+     * the object, and not this snapshot, is the current state.
+     *
+     * @param entry entry id
+     */
+    void setMaterialized(int entry) {
+        materialized.set(entry);
+    }
+
+
+    boolean isMaterialized(int entry) {
+        return materialized.get(entry);
+    }
+
+
+    String getURI(int entry) {
+        return getString(getEntryInt(entry, 0));
+    }
+
+
+    /**
+     *
+     * @param entry entry id
+     * @return the cache-relative name of the local file.
+     */
+    String getLocal(int entry) {
+        int id = getEntryInt(entry, 4);
+        if (id < 0) {
+            return getAttributes(entry).get(LOCAL_ATTRIBUTE);
+        }
+        return Integer.toHexString(id);
+    }
+
+
+    String getType(int entry) {
+        int code = buff.get(entriesPos + ENTRY_SIZE * entry + 8) & 0xff;
+        if (code < TYPES.length) {
+            return TYPES[code];
+        }
+        return getAttributes(entry).get("type");
+    }
+
+
+    boolean isReload(int entry) {
+        return (buff.get(entriesPos + ENTRY_SIZE * entry + 9) & FLAG_RELOAD) != 0;
+    }
+
+
+    List<String> getChildren(int entry) {
+        int start = getEntryInt(entry, 12);
+        int count = getEntryInt(entry, 16);
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        List<String> ret = new ArrayList<String>(count);
+        for (int i = 0; i < count; ++i) {
+            ret.add(getString(buff.getInt(childrenPos + 4 * (start + i))));
+        }
+        return ret;
+    }
+
+
+    /**
+     *
+     * @param entry entry id
+     * @return the extra, per-resource values stored with the entry.
+     */
+    Map<String, String> getAttributes(int entry) {
+        int start = getEntryInt(entry, 20);
+        int count = getEntryInt(entry, 24);
+        if (count <= 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> ret = new HashMap<String, String>();
+        for (int i = 0; i < count; ++i) {
+            int pos = attributesPos + 8 * (start + i);
+            ret.put(getString(buff.getInt(pos)), getString(buff.getInt(pos + 4)));
+        }
+        return ret;
+    }
+
+
+    /**
+     * Copy every entry that was never turned into a resource object into the
+     * writer, without decoding its URIs.
+     *
+     * @param w destination
+     */
+    void copyUnmaterialized(Writer w) {
+        for (int i = 0; i < entryCount; ++i) {
+            if (! materialized.get(i)) {
+                w.add(getURI(i), getLocal(i), getType(i), isReload(i),
+                        getChildren(i), getAttributes(i));
+            }
+        }
+    }
+
+
+    private int getEntryInt(int entry, int offset) {
+        return buff.getInt(entriesPos + ENTRY_SIZE * entry + offset);
+    }
+
+
+    private String getString(int id) {
+        int pos = dataPos + buff.getInt(stringsPos + 4 * id);
+        int len = buff.getInt(pos);
+        byte[] data = new byte[len];
+        ByteBuffer dup = buff.duplicate();
+        dup.position(pos + 4);
+        dup.get(data);
+        return new String(data, UTF8);
+    }
+
+
+    private boolean stringEquals(int id, byte[] key) {
+        int pos = dataPos + buff.getInt(stringsPos + 4 * id);
+        if (buff.getInt(pos) != key.length) {
+            return false;
+        }
+        pos += 4;
+        for (int i = 0; i < key.length; ++i) {
+            if (buff.get(pos + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+
+    /**
+     * Collects the cache entries and writes them as a new index file.
+     * Every string, including the child URIs, is stored only once.
+     */
+    static class Writer {
+        private final Map<String, Integer> stringIds =
+                new HashMap<String, Integer>();
+        private final List<byte[]> strings = new ArrayList<byte[]>();
+        private final List<int[]> entries = new ArrayList<int[]>();
+        private final List<Integer> entryHashes = new ArrayList<Integer>();
+        private int[] children = new int[64];
+        private int childCount = 0;
+        private int[] attributes = new int[64];
+        private int attributeCount = 0;
+        private int dataLength = 0;
+
+
+        void add(String uri, String local, String type, boolean reload,
+                Collection<String> kids, Map<String, String> attrs) {
+            int localId;
+            try {
+                localId = Integer.parseInt(local, 16);
+            } catch (NumberFormatException e) {
+                localId = -1;
+            }
+            int typeCode = TYPE_OTHER;
+            for (int i = 0; i < TYPES.length; ++i) {
+                if (TYPES[i].equals(type)) {
+                    typeCode = i;
+                }
+            }
+
+            int childStart = childCount;
+            for (String kid: kids) {
+                if (childCount >= children.length) {
+                    int[] n = new int[children.length * 2];
+                    System.arraycopy(children, 0, n, 0, childCount);
+                    children = n;
+                }
+                children[childCount++] = intern(kid);
+            }
+
+            int attrStart = attributeCount;
+            for (Map.Entry<String, String> e: attrs.entrySet()) {
+                addAttribute(e.getKey(), e.getValue());
+            }
+            if (localId < 0) {
+                addAttribute(LOCAL_ATTRIBUTE, local);
+            }
+            if (typeCode == TYPE_OTHER) {
+                addAttribute("type", type);
+            }
+
+            entries.add(new int[] {
+                    intern(uri), localId, typeCode, reload ? FLAG_RELOAD : 0,
+                    childStart, childCount - childStart,
+                    attrStart, attributeCount - attrStart
+            });
+            entryHashes.add(uri.hashCode());
+        }
+
+
+        private void addAttribute(String key, String value) {
+            if (value == null) {
+                return;
+            }
+            if (attributeCount * 2 + 2 > attributes.length) {
+                int[] n = new int[attributes.length * 2];
+                System.arraycopy(attributes, 0, n, 0, attributeCount * 2);
+                attributes = n;
+            }
+            attributes[attributeCount * 2] = intern(key);
+            attributes[attributeCount * 2 + 1] = intern(value);
+            ++attributeCount;
+        }
+
+
+        private int intern(String s) {
+            Integer id = stringIds.get(s);
+            if (id == null) {
+                id = strings.size();
+                byte[] data = s.getBytes(UTF8);
+                strings.add(data);
+                dataLength += 4 + data.length;
+                stringIds.put(s, id);
+            }
+            return id;
+        }
+
+
+        /**
+         * Write the index and force it to the disk before returning.
+         *
+         * @param f destination file
+         * @param journalGeneration first journal generation not included
+         * @param lastFileIndex the next local file number
+         * @throws IOException if the file couldn't be written
+         */
+        void write(File f, long journalGeneration, int lastFileIndex)
+                throws IOException {
+            ByteBuffer out = toBuffer(journalGeneration, lastFileIndex);
+            FileOutputStream fos = new FileOutputStream(f);
+            try {
+                FileChannel channel = fos.getChannel();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(true);
+            } finally {
+                fos.close();
+            }
+        }
+
+
+        /**
+         *
+         * @param journalGeneration first journal generation not included
+         * @param lastFileIndex the next local file number
+         * @return the encoded index, ready to be written.
+         * @throws IOException if the index is too large
+         */
+        ByteBuffer toBuffer(long journalGeneration, int lastFileIndex)
+                throws IOException {
+            int hashSize = 1;
+            while (hashSize < entries.size() * 2) {
+                hashSize <<= 1;
+            }
+            if (entries.isEmpty()) {
+                hashSize = 0;
+            }
+            long size = HEADER_SIZE + 4L * strings.size() +
+                    (long) ENTRY_SIZE * entries.size() + 4L * hashSize +
+                    4L * childCount + 8L * attributeCount + dataLength + 4;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("cache index is too large");
+            }
+            ByteBuffer out = ByteBuffer.allocate((int) size);
+
+            out.putInt(MAGIC);
+            out.putInt(FORMAT_VERSION);
+            out.putLong(journalGeneration);
+            out.putInt(lastFileIndex);
+            out.putInt(strings.size());
+            out.putInt(entries.size());
+            out.putInt(hashSize);
+            out.putInt(childCount);
+            out.putInt(attributeCount);
+            out.putInt(dataLength);
+
+            int offset = 0;
+            for (byte[] s: strings) {
+                out.putInt(offset);
+                offset += 4 + s.length;
+            }
+
+            for (int[] e: entries) {
+                out.putInt(e[0]);
+                out.putInt(e[1]);
+                out.put((byte) e[2]);
+                out.put((byte) e[3]);
+                out.putShort((short) 0);
+                out.putInt(e[4]);
+                out.putInt(e[5]);
+                out.putInt(e[6]);
+                out.putInt(e[7]);
+            }
+
+            int[] hash = new int[hashSize];
+            for (int i = 0; i < entries.size(); ++i) {
+                int slot = spread(entryHashes.get(i)) & (hashSize - 1);
+                while (hash[slot] != 0) {
+                    slot = (slot + 1) & (hashSize - 1);
+                }
+                hash[slot] = i + 1;
+            }
+            for (int h: hash) {
+                out.putInt(h);
+            }
+            for (int i = 0; i < childCount; ++i) {
+                out.putInt(children[i]);
+            }
+            for (int i = 0; i < attributeCount * 2; ++i) {
+                out.putInt(attributes[i]);
+            }
+            for (byte[] s: strings) {
+                out.putInt(s.length);
+                out.put(s);
+            }
+            out.putInt(MAGIC);
+            out.flip();
+            return out;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import net.javagaming.java4k.launcher.json.JSONException;
+import net.javagaming.java4k.launcher.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An append-only log of the changes made to the cache index since the last
+ * checkpoint.  Each change is one small JSON record on its own line, so
+ * adding a resource no longer means rewriting the whole index.
+ * <p/>
+ * The journal is split into generations.  A checkpoint rolls the journal
+ * over to a new generation, writes the snapshot, and only then removes the
+ * older generations.  Replaying a record more than once is harmless, so
+ * any record that ends up both in the snapshot and in the newer journal
+ * is fine.
+ *
+ * @author Groboclown
+ */
+class CacheJournal {
+    static final String OP_ADD = "add";
+    static final String OP_CHILD = "child";
+    static final String OP_UPDATE = "update";
+    static final String OP_RELOAD = "reload";
+
+    private static final String PREFIX = "index.";
+    private static final String SUFFIX = ".journal";
+
+    private final File dir;
+    private final Warnings warnings;
+    private final Object sync = new Object();
+    private long generation;
+    private Writer out;
+    private int recordCount = 0;
+
+
+    interface RecordHandler {
+        void replay(JSONObject record) throws IOException;
+    }
+
+
+    /**
+     * Told about journal problems that don't stop the cache from working.
+     */
+    interface Warnings {
+        void warn(String message);
+    }
+
+
+    CacheJournal(File dir, long generation, Warnings warnings) {
+        this.dir = dir;
+        this.generation = generation;
+        this.warnings = warnings;
+    }
+
+
+    /**
+     * Append a single record to the current journal generation.  The record
+     * is pushed to the operating system before this returns, so it survives
+     * the launcher being killed; surviving a power loss is left to the
+     * fsync'd checkpoint.
+     *
+     * @param record the change to record
+     * @throws IOException if the journal could not be written
+     */
+    void append(JSONObject record) throws IOException {
+        String line = record.toString();
+        synchronized (sync) {
+            if (out == null) {
+                out = new OutputStreamWriter(new FileOutputStream(
+                        getJournalFile(generation), true),
+                        Resource.DEFAULT_ENCODING);
+            }
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            ++recordCount;
+        }
+    }
+
+
+    /**
+     *
+     * @return the number of records written since the last roll over.
+     */
+    int getRecordCount() {
+        synchronized (sync) {
+            return recordCount;
+        }
+    }
+
+
+    /**
+     * Close the current generation and start a new one.  Everything written
+     * before this call is in a generation older than the returned one.
+     *
+     * @return the new generation.
+     */
+    long roll() {
+        synchronized (sync) {
+            close();
+            ++generation;
+            recordCount = 0;
+            return generation;
+        }
+    }
+
+
+    void close() {
+        synchronized (sync) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    warnings.warn("could not close journal: " + e.getMessage());
+                }
+                out = null;
+            }
+        }
+    }
+
+
+    /**
+     * Remove all the journal generations that came before the given one.
+     * Called once a checkpoint containing them is safely on disk.
+     *
+     * @param firstKept the oldest generation that must be kept.
+     */
+    void deleteBefore(long firstKept) {
+        for (File f: getJournalFiles(dir)) {
+            if (getGeneration(f) < firstKept && ! f.delete()) {
+                warnings.warn("could not remove old journal " + f);
+            }
+        }
+    }
+
+
+    private File getJournalFile(long gen) {
+        return new File(dir, PREFIX + gen + SUFFIX);
+    }
+
+
+    /**
+     * Replay all the journal generations, oldest first, starting with the
+     * given generation.
+     *
+     * @param dir cache directory
+     * @param fromGeneration first generation not contained in the snapshot.
+     * @param handler applies each record
+     * @param warnings told about journals that could not be fully read
+     * @return the newest generation found, or <tt>fromGeneration - 1</tt> if
+     *      there were none.
+     */
+    static long replay(File dir, long fromGeneration, RecordHandler handler,
+            Warnings warnings) {
+        long newest = fromGeneration - 1;
+        for (File f: getJournalFiles(dir)) {
+            long gen = getGeneration(f);
+            if (gen >= fromGeneration) {
+                replay(f, handler, warnings);
+                newest = Math.max(newest, gen);
+            }
+        }
+        return newest;
+    }
+
+
+    private static void replay(File f, RecordHandler handler,
+            Warnings warnings) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), Resource.DEFAULT_ENCODING));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() <= 0) {
+                        continue;
+                    }
+                    JSONObject record;
+                    try {
+                        record = new JSONObject(line);
+                    } catch (JSONException e) {
+                        // A torn write from a crash; nothing after it
+                        // can be trusted.
+                        warnings.warn("journal " + f +
+                                " ends with a partial record; ignoring it");
+                        return;
+                    }
+                    handler.replay(record);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            warnings.warn("could not replay journal " + f + ": " +
+                    e.getMessage());
+        } catch (JSONException e) {
+            warnings.warn("could not replay journal " + f + ": " +
+                    e.getMessage());
+        }
+    }
+
+
+    private static List<File> getJournalFiles(File dir) {
+        List<File> ret = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f: files) {
+                if (getGeneration(f) >= 0) {
+                    ret.add(f);
+                }
+            }
+        }
+        Collections.sort(ret, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ga = getGeneration(a);
+                long gb = getGeneration(b);
+                return ga < gb ? -1 : (ga == gb ? 0 : 1);
+            }
+        });
+        return ret;
+    }
+
+
+    private static long getGeneration(File f) {
+        String name = f.getName();
+        if (! name.startsWith(PREFIX) || ! name.endsWith(SUFFIX) ||
+                name.length() <= PREFIX.length() + SUFFIX.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -31,107 +31,458 @@ import net.javagaming.java4k.launcher.GameConfiguration;
 import net.javagaming.java4k.launcher.GameDescription;
 import net.javagaming.java4k.launcher.GameDescriptionListResourceReader;
 import net.javagaming.java4k.launcher.GameDetail;
-import net.javagaming.java4k.launcher.LauncherManager;
+import net.javagaming.java4k.launcher.Security;
 import net.javagaming.java4k.launcher.java4kcom.Java4kComYearCategoryListReader;
 import net.javagaming.java4k.launcher.progress.SimpleResourceProducer;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A main program for populating the cache.
- *
+ * <p/>
+ * Contests and games are loaded by a pool of workers, while the cache
+ * spaces out the requests to each host.  Every game whose files were all
+ * loaded is written to a checkpoint file, so an interrupted run picks up
+ * where it stopped; the file is removed once a run finishes without
+ * failures.  Pass "restart" to ignore the checkpoint.  Files already in
+ * the cache are only downloaded again if the server has newer ones.
  *
  * @author Groboclown
  */
 public class CachePopulator {
-    private static final long DELAY = 100L;
+    /**
+     * System property for how many workers load games at once.
+     */
+    public static final String THREADS_PROPERTY = "launcher.populate.threads";
+
+    /**
+     * System property for the most requests per second made to one host.
+     */
+    public static final String RATE_PROPERTY =
+            "launcher.populate.requests-per-second";
+
+    /**
+     * System property for the checkpoint file, which lists the games
+     * already loaded.
+     */
+    public static final String CHECKPOINT_PROPERTY =
+            "launcher.populate.checkpoint";
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_RATE = 10;
+    private static final String DEFAULT_CHECKPOINT = "populate.checkpoint";
 
 
     public static void main(String args[]) throws InterruptedException {
+        Cache cache = Cache.getInstance();
+        cache.setRequestLimiter(new HostRateLimiter(Math.max(1,
+                Integer.getInteger(RATE_PROPERTY, DEFAULT_RATE))));
+
+        String checkpointName = System.getProperty(CHECKPOINT_PROPERTY);
+        File checkpointFile = checkpointName == null
+                ? new File(Security.getRootDir(), DEFAULT_CHECKPOINT)
+                : new File(checkpointName);
+        if (args.length > 0 && "restart".equals(args[0]) &&
+                checkpointFile.exists() && ! checkpointFile.delete()) {
+            System.err.println("[ERROR] *** Could not remove " +
+                    checkpointFile);
+            return;
+        }
+        final Checkpoint checkpoint;
+        try {
+            checkpoint = new Checkpoint(checkpointFile);
+        } catch (IOException e) {
+            System.err.println("[ERROR] *** Could not open the checkpoint " +
+                    checkpointFile + ": " + e.getMessage());
+            return;
+        }
+        if (checkpoint.size() > 0) {
+            System.out.println("Resuming; " + checkpoint.size() +
+                    " games were already loaded");
+        }
+
+        CachePopulator populator = new CachePopulator(cache, checkpoint,
+                Math.max(1, Integer.getInteger(THREADS_PROPERTY,
+                        DEFAULT_THREADS)));
+        boolean finished = false;
+        try {
+            populator.run();
+            finished = true;
+        } finally {
+            populator.shutdown();
+            cache.setRequestLimiter(null);
+            checkpoint.close(finished && populator.getFailureCount() == 0);
+        }
+        cache.checkpoint();
+        populator.printReport();
+        printTransferReport(cache);
+    }
+
+
+    private final Cache cache;
+    private final Checkpoint checkpoint;
+    private final ExecutorService workers;
+    private final Phaser pending = new Phaser(1);
+    private final ThreadGroup tg = new ThreadGroup("");
+    private final List<ContestReport> contests =
+            Collections.synchronizedList(new ArrayList<ContestReport>());
+    private final AtomicInteger failures = new AtomicInteger();
+    private final long started = System.nanoTime();
+    private final long startWireBytes;
+
+
+    private CachePopulator(Cache cache, Checkpoint checkpoint, int threads) {
+        this.cache = cache;
+        this.checkpoint = checkpoint;
+        this.startWireBytes = cache.getWireBytes();
+        this.workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Cache populator " +
+                                count.incrementAndGet());
+                    }
+                });
+    }
+
+
+    /**
+     * Queue everything, and wait for it all to be loaded.
+     */
+    private void run() throws InterruptedException {
         // First, download all the known troublemakers.
         // This should be an option - download just the troublemakers, or
         // download everything.
-
-        for (String uri: Cache.getInstance().getUrlMap().getRedirectedUris()) {
-            Resource r = null;
-            try {
-                r = Cache.getInstance().getResource(null,
-                        Cache.uri(uri), true);
-            } catch (IOException e) {
-                System.err.println("[ERROR] *** Bad url: " + uri);
-            }
-            if (r == null) {
-                continue;
-            }
-            try {
-                r.read().close();
-            } catch (IOException e) {
-                System.err.println("[ERROR] *** Could not load " + uri);
-            }
+        final ContestReport redirects = new ContestReport("Redirected URIs");
+        for (final String uri: cache.getUrlMap().getRedirectedUris()) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    loadRedirected(redirects, uri);
+                }
+            });
         }
 
-        ThreadGroup tg = new ThreadGroup("");
         Java4kComYearCategoryListReader categoryFactory;
         try {
             categoryFactory = new Java4kComYearCategoryListReader(null);
         } catch (IOException e) {
             System.err.println("[ERROR] *** Problem creating the contest reader.  Can't continue.");
+            failures.incrementAndGet();
+            pending.arriveAndAwaitAdvance();
             return;
         }
-        //ChildProgressController progress = new ChildProgressController(null, 1);
         List<GameDescriptionListResourceReader> descriptionFactories;
         try {
             descriptionFactories = SimpleResourceProducer.load(categoryFactory);
         } catch (Exception e) {
             System.err.println("[ERROR] *** Problem reading the contest entries.  Can't continue.");
+            failures.incrementAndGet();
+            pending.arriveAndAwaitAdvance();
             return;
         }
-        for (GameDescriptionListResourceReader gdf: descriptionFactories) {
-            Thread.sleep(DELAY);
-            List<GameDescription> sources;
-            try {
-                sources = SimpleResourceProducer.load(gdf);
-            } catch (Exception e) {
-                System.err.println("[ERROR] *** Could not read contest URI " +
-                        gdf.getResource() + ": " + e.getMessage());
-                continue;
+        for (final GameDescriptionListResourceReader gdf: descriptionFactories) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    loadContest(gdf);
+                }
+            });
+        }
+        pending.arriveAndAwaitAdvance();
+    }
+
+
+    private void submit(final Runnable task) {
+        pending.register();
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    pending.arriveAndDeregister();
+                }
             }
+        });
+    }
+
+
+    private void loadRedirected(ContestReport report, String uri) {
+        report.startTask();
+        boolean ok = false;
+        try {
+            cache.getResource(null, Cache.uri(uri), true).read().close();
+            ok = true;
+        } catch (IOException e) {
+            System.err.println("[ERROR] *** Could not load " + uri + ": " +
+                    e.getMessage());
+        } finally {
+            report.endTask(ok, false);
+        }
+        if (! ok) {
+            failures.incrementAndGet();
+        }
+    }
+
+
+    private void loadContest(GameDescriptionListResourceReader gdf) {
+        final ContestReport report = new ContestReport(gdf.getName());
+        report.startTask();
+        List<GameDescription> sources;
+        try {
+            sources = SimpleResourceProducer.load(gdf);
+        } catch (Exception e) {
+            System.err.println("[ERROR] *** Could not read contest URI " +
+                    gdf.getResource() + ": " + e.getMessage());
+            failures.incrementAndGet();
+            report.endTask(false, false);
+            return;
+        }
+        // The contest list itself isn't a game.
+        report.endTask(true, true);
+        for (final GameDescription gd: sources) {
+            if (gd != null) {
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadGame(report, gd);
+                    }
+                });
+            }
+        }
+    }
+
+
+    private void loadGame(ContestReport report, GameDescription gd) {
+        String id = gd.getGameDetailSource().getURI().toString();
+        if (checkpoint.contains(id)) {
+            report.skipped.incrementAndGet();
+            return;
+        }
+        report.startTask();
+        boolean ok = true;
+        List<GameDetail> details;
+        try {
             DefaultGameDetailListResourceReader dgdlrr =
                     new DefaultGameDetailListResourceReader();
-            for (GameDescription gd: sources) {
-                if (gd != null) {
-                    Thread.sleep(DELAY);
-                    List<GameDetail> details;
-                    try {
-                        dgdlrr.addPendingSource(gd);
-                        details = SimpleResourceProducer.load(
-                                gd.getGameDetailSource(), dgdlrr);
-                    } catch (Exception e) {
-                        System.err.println("[ERROR] *** Problem loading game " +
-                                gd.getName() + " from " + gdf + ": " + e.getMessage());
-                        continue;
-                    }
-                    for (GameDetail detail: details) {
-                        GameConfiguration config = null;
-                        try {
-                            config = detail.createGameConfiguration(tg);
-                        } catch (IOException e) {
-                            System.err.println("[ERROR] *** Problem reading the configuration for game "
-                                    + gd.getName() + " from " + gdf + ": " + e.getMessage());
-                        }
-                        if (config != null) {
-                            try {
-                                config.loadCache();
-                            } catch (IOException e) {
-                                System.err.println("[ERROR] *** Problem loading the files for game " +
-                                        gd.getName() + " from " + gdf + ": " + e.getMessage());
-                            }
-                        }
-                    }
+            dgdlrr.addPendingSource(gd);
+            details = SimpleResourceProducer.load(
+                    gd.getGameDetailSource(), dgdlrr);
+        } catch (Exception e) {
+            System.err.println("[ERROR] *** Problem loading game " +
+                    gd.getName() + " from " + report.name + ": " +
+                    e.getMessage());
+            details = Collections.emptyList();
+            ok = false;
+        }
+        for (GameDetail detail: details) {
+            try {
+                GameConfiguration config = detail.createGameConfiguration(tg);
+                if (config != null) {
+                    config.loadCache();
                 }
+            } catch (IOException e) {
+                System.err.println("[ERROR] *** Problem loading the files for game " +
+                        gd.getName() + " from " + report.name + ": " +
+                        e.getMessage());
+                ok = false;
+            }
+        }
+        report.endTask(ok, false);
+        if (ok) {
+            checkpoint.add(id);
+        } else {
+            failures.incrementAndGet();
+        }
+    }
+
+
+    private void shutdown() throws InterruptedException {
+        workers.shutdownNow();
+        workers.awaitTermination(5L, TimeUnit.SECONDS);
+    }
+
+
+    int getFailureCount() {
+        return failures.get();
+    }
+
+
+    private void printReport() {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        int games = 0;
+        int skipped = 0;
+        System.out.println(String.format("%-32s %6s %7s %6s %9s",
+                "Contest", "games", "skipped", "failed", "seconds"));
+        synchronized (contests) {
+            for (ContestReport r: contests) {
+                System.out.println(String.format("%-32s %6d %7d %6d %9.1f",
+                        r.name, r.loaded.get(), r.skipped.get(),
+                        r.failed.get(), r.getSeconds()));
+                games += r.loaded.get();
+                skipped += r.skipped.get();
+            }
+        }
+        long wire = cache.getWireBytes() - startWireBytes;
+        System.out.println(String.format(
+                "Loaded %d games (%d skipped, %d failures) in %.1f seconds: " +
+                "%.1f games/minute, %.1f KB/s received",
+                games, skipped, failures.get(), seconds,
+                seconds > 0.0 ? games * 60.0 / seconds : 0.0,
+                seconds > 0.0 ? wire / 1024.0 / seconds : 0.0));
+    }
+
+
+    private static void printTransferReport(Cache cache) {
+        long wire = cache.getWireBytes();
+        long decoded = cache.getDownloadedBytes();
+        System.out.println("Downloaded " + cache.getDownloadCount() +
+                " files (" + cache.getNotModifiedCount() +
+                " not modified): " + wire + " bytes received for " + decoded +
+                " bytes cached");
+        if (decoded > 0L) {
+            System.out.println("Compression saved " + (decoded - wire) +
+                    " bytes (" + ((decoded - wire) * 100L / decoded) + "%)");
+        }
+    }
+
+
+
+    /**
+     * Counts and timings for one contest.  The time is from when its first
+     * task started to when its last one finished.
+     */
+    private class ContestReport {
+        final String name;
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+
+        ContestReport(String name) {
+            this.name = name;
+            contests.add(this);
+        }
+
+        void startTask() {
+            long now = System.nanoTime();
+            long f = first.get();
+            while (now < f && ! first.compareAndSet(f, now)) {
+                f = first.get();
+            }
+        }
+
+        void endTask(boolean ok, boolean listOnly) {
+            long now = System.nanoTime();
+            long l = last.get();
+            while (now > l && ! last.compareAndSet(l, now)) {
+                l = last.get();
+            }
+            if (! ok) {
+                failed.incrementAndGet();
+            } else if (! listOnly) {
+                loaded.incrementAndGet();
             }
         }
+
+        double getSeconds() {
+            long f = first.get();
+            long l = last.get();
+            return l > f ? (l - f) / 1e9 : 0.0;
+        }
     }
 
+
+
+    /**
+     * The games already loaded, one detail page URI per line.  Each game is
+     * written out as soon as it's done, so little is lost if the run is
+     * killed; a line torn by a crash just doesn't match any game.
+     */
+    static class Checkpoint {
+        private final File file;
+        private final Set<String> done = new HashSet<String>();
+        private final Writer out;
+
+        Checkpoint(File file) throws IOException {
+            this.file = file;
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(file), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        done.add(line);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (FileNotFoundException e) {
+                // nothing loaded yet
+            }
+            out = new OutputStreamWriter(new FileOutputStream(file, true),
+                    "UTF-8");
+        }
+
+        synchronized int size() {
+            return done.size();
+        }
+
+        synchronized boolean contains(String id) {
+            return done.contains(id);
+        }
+
+        synchronized void add(String id) {
+            if (done.add(id)) {
+                try {
+                    out.write(id + "\n");
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.println("[ERROR] *** Could not write the checkpoint " +
+                            file + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         *
+         * @param complete true if every game was loaded, so the next run
+         *      should start over.
+         */
+        synchronized void close(boolean complete) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("[ERROR] *** Could not write the checkpoint " +
+                        file + ": " + e.getMessage());
+            }
+            if (complete && file.exists() && ! file.delete()) {
+                System.err.println("[ERROR] *** Could not remove " + file);
+            }
+        }
+    }
 }
@@ -0,0 +1,420 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import net.javagaming.java4k.launcher.json.JSONObject;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and download statistics for the cache, with latency
+ * histograms kept per host and per resource type.  They're registered as
+ * a platform MBean, and can be written out as JSON when the launcher
+ * exits.
+ * <p/>
+ * Recording is done on every read and download, so it never allocates
+ * once a host or type has been seen.
+ *
+ * @author Groboclown
+ */
+public class CacheStats implements CacheStatsMBean {
+    /**
+     * System property for a file to write the statistics to, as JSON,
+     * when the launcher exits.
+     */
+    public static final String STATS_FILE_PROPERTY = "launcher.stats.file";
+
+    public static final String OBJECT_NAME =
+            "net.javagaming.java4k.launcher:type=CacheStats";
+
+    private final Cache cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong wastedBytes = new AtomicLong();
+    private final ConcurrentMap<String, HostStats> hosts =
+            new ConcurrentHashMap<String, HostStats>();
+    private final ConcurrentMap<String, LatencyHistogram> types =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final ConcurrentMap<String, LatencyHistogram> queueWaits =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+
+    static final class HostStats {
+        final LatencyHistogram firstByte = new LatencyHistogram();
+        final LatencyHistogram download = new LatencyHistogram();
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        final LatencyHistogram load = new LatencyHistogram();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong wastedBytes = new AtomicLong();
+
+        JSONObject toJSon() {
+            JSONObject obj = new JSONObject();
+            obj.put("bytesIn", bytesIn.get());
+            obj.put("retries", retries.get());
+            obj.put("failures", failures.get());
+            obj.put("wastedBytes", wastedBytes.get());
+            obj.put("firstByte", firstByte.toJSon());
+            obj.put("download", download.toJSon());
+            obj.put("queueWait", queueWait.toJSon());
+            obj.put("load", load.toJSon());
+            return obj;
+        }
+    }
+
+
+    CacheStats(Cache cache) {
+        this.cache = cache;
+    }
+
+
+    /**
+     * Register the MBean, and the exit dump if it was asked for.  Neither
+     * is worth stopping the launcher over.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            Cache.warn("could not register the cache statistics: " +
+                    e.getMessage());
+        } catch (SecurityException e) {
+            Cache.warn("could not register the cache statistics: " +
+                    e.getMessage());
+        }
+
+        final String file = System.getProperty(STATS_FILE_PROPERTY);
+        if (file != null && file.length() > 0) {
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(
+                        new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            dump(file);
+                        } catch (IOException e) {
+                            Cache.warn("could not write the cache statistics: " +
+                                    e.getMessage());
+                        }
+                    }
+                }, "Cache statistics"));
+            } catch (SecurityException e) {
+                Cache.warn("could not write the cache statistics on exit: " +
+                        e.getMessage());
+            }
+        }
+    }
+
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+
+    void revalidation() {
+        revalidations.incrementAndGet();
+    }
+
+
+    void recordFirstByte(URI url, long nanos) {
+        host(url).firstByte.record(nanos);
+    }
+
+
+    void recordDownload(URI url, String type, long nanos, long wireBytes) {
+        HostStats host = host(url);
+        host.download.record(nanos);
+        host.bytesIn.addAndGet(wireBytes);
+        histogram(types, type).record(nanos);
+    }
+
+
+    void recordRetry(URI url) {
+        retries.incrementAndGet();
+        host(url).retries.incrementAndGet();
+    }
+
+
+    void recordFailure(URI url) {
+        failures.incrementAndGet();
+        host(url).failures.incrementAndGet();
+    }
+
+
+    void recordCancelled(URI url, long wasted) {
+        cancelled.incrementAndGet();
+        wastedBytes.addAndGet(wasted);
+        host(url).wastedBytes.addAndGet(wasted);
+    }
+
+
+    /**
+     * Record a load requested through the download scheduler.
+     *
+     * @param url resource loaded
+     * @param waitNanos time between the request and it starting to run
+     * @param loadNanos time it then took to make the resource available
+     */
+    public void recordScheduled(URI url, long waitNanos, long loadNanos) {
+        HostStats host = host(url);
+        host.queueWait.record(waitNanos);
+        host.load.record(loadNanos);
+    }
+
+
+    /**
+     * Record how long scheduled work waited before it started.
+     *
+     * @param queue the scheduler and priority class the work waited in
+     * @param waitNanos time between the request and it starting to run
+     */
+    public void recordQueueWait(String queue, long waitNanos) {
+        histogram(queueWaits, queue).record(waitNanos);
+    }
+
+
+    /**
+     * Record scheduled work dropped for a newer request before it started.
+     */
+    public void recordSuperseded() {
+        superseded.incrementAndGet();
+    }
+
+
+    private HostStats host(URI url) {
+        String name = url.getHost();
+        if (name == null) {
+            name = url.getScheme();
+        }
+        HostStats ret = hosts.get(name);
+        if (ret == null) {
+            HostStats created = new HostStats();
+            ret = hosts.putIfAbsent(name, created);
+            if (ret == null) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+
+    private static LatencyHistogram histogram(
+            ConcurrentMap<String, LatencyHistogram> map, String name) {
+        LatencyHistogram ret = map.get(name);
+        if (ret == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            ret = map.putIfAbsent(name, created);
+            if (ret == null) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    @Override
+    public long getNotModified() {
+        return cache.getNotModifiedCount();
+    }
+
+    @Override
+    public long getDownloads() {
+        return cache.getDownloadCount();
+    }
+
+    @Override
+    public long getCoalescedDownloads() {
+        return cache.getCoalescedDownloadCount();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return cache.getWireBytes();
+    }
+
+    @Override
+    public long getBytesCached() {
+        return cache.getDownloadedBytes();
+    }
+
+    @Override
+    public long getMemoryHits() {
+        return cache.getMemoryHitCount();
+    }
+
+    @Override
+    public long getEvicted() {
+        return cache.getEvictedCount();
+    }
+
+    @Override
+    public long getCorrupt() {
+        return cache.getCorruptCount();
+    }
+
+    @Override
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    @Override
+    public long getWastedBytes() {
+        return wastedBytes.get();
+    }
+
+    @Override
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    @Override
+    public String[] getHosts() {
+        return sortedKeys(hosts);
+    }
+
+    @Override
+    public String[] getTypes() {
+        return sortedKeys(types);
+    }
+
+    @Override
+    public String[] getQueues() {
+        return sortedKeys(queueWaits);
+    }
+
+    @Override
+    public String getReport() {
+        return toJSon().toString(2);
+    }
+
+    @Override
+    public void dump(String fileName) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(
+                new File(fileName)), Resource.DEFAULT_ENCODING);
+        try {
+            w.write(getReport());
+        } finally {
+            w.close();
+        }
+    }
+
+
+    JSONObject toJSon() {
+        JSONObject obj = new JSONObject();
+        obj.put("hits", getHits());
+        obj.put("misses", getMisses());
+        obj.put("revalidations", getRevalidations());
+        obj.put("notModified", getNotModified());
+        obj.put("downloads", getDownloads());
+        obj.put("coalescedDownloads", getCoalescedDownloads());
+        obj.put("retries", getRetries());
+        obj.put("failures", getFailures());
+        obj.put("bytesIn", getBytesIn());
+        obj.put("bytesCached", getBytesCached());
+        obj.put("memoryHits", getMemoryHits());
+        obj.put("evicted", getEvicted());
+        obj.put("corrupt", getCorrupt());
+        obj.put("superseded", getSuperseded());
+        obj.put("cancelled", getCancelled());
+        obj.put("wastedBytes", getWastedBytes());
+        JSONObject hostObj = new JSONObject();
+        for (String name: getHosts()) {
+            hostObj.put(name, hosts.get(name).toJSon());
+        }
+        obj.put("hosts", hostObj);
+        JSONObject typeObj = new JSONObject();
+        for (String name: getTypes()) {
+            typeObj.put(name, types.get(name).toJSon());
+        }
+        obj.put("types", typeObj);
+        JSONObject queueObj = new JSONObject();
+        for (String name: getQueues()) {
+            queueObj.put(name, queueWaits.get(name).toJSon());
+        }
+        obj.put("queueWait", queueObj);
+        return obj;
+    }
+
+
+    private static String[] sortedKeys(Map<String, ?> map) {
+        List<String> keys = new ArrayList<String>(map.keySet());
+        Collections.sort(keys);
+        return keys.toArray(new String[keys.size()]);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+/**
+ * The cache and download statistics, as seen through JMX.
+ *
+ * @author Groboclown
+ */
+public interface CacheStatsMBean {
+    long getHits();
+
+    long getMisses();
+
+    long getRevalidations();
+
+    long getNotModified();
+
+    long getDownloads();
+
+    long getCoalescedDownloads();
+
+    long getRetries();
+
+    long getFailures();
+
+    long getBytesIn();
+
+    long getBytesCached();
+
+    long getMemoryHits();
+
+    long getEvicted();
+
+    long getCorrupt();
+
+    /**
+     *
+     * @return downloads stopped part way because they were cancelled.
+     */
+    long getCancelled();
+
+    /**
+     *
+     * @return bytes received by cancelled downloads, and thrown away.
+     */
+    long getWastedBytes();
+
+    /**
+     *
+     * @return scheduled work dropped for a newer request before it started.
+     */
+    long getSuperseded();
+
+    String[] getHosts();
+
+    String[] getTypes();
+
+    /**
+     *
+     * @return the scheduler queues with recorded wait times, as
+     *      "scheduler.priority".
+     */
+    String[] getQueues();
+
+    /**
+     *
+     * @return everything recorded, as JSON text.
+     */
+    String getReport();
+
+    /**
+     * Write the report to a file.
+     *
+     * @param fileName file to write
+     */
+    void dump(String fileName) throws java.io.IOException;
+}
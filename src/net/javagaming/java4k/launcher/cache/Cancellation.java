@@ -0,0 +1,195 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request to stop work that is no longer wanted.  The thread doing the
+ * work binds it with {@link #bind(Cancellation)}, and the cache checks it
+ * as a download is copied, so a cancelled {@link Resource#read()} stops
+ * part way through with a {@link CancelledException}, and leaves nothing
+ * partly downloaded behind.  Long parses should call {@link #check(String)}
+ * as they go.
+ *
+ * @author Groboclown
+ */
+public class Cancellation {
+    private static final ThreadLocal<Cancellation> CURRENT =
+            new ThreadLocal<Cancellation>();
+    private static final long POLL_MS = 100L;
+
+    private volatile boolean cancelled = false;
+
+
+    public void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Subclasses may add other reasons to stop, but then
+     * {@link #sleep(String, long)} only notices them on its next poll.
+     *
+     * @return true if the work should stop.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     *
+     * @return the cancellation bound to the current thread, or null.
+     */
+    public static Cancellation current() {
+        return CURRENT.get();
+    }
+
+
+    /**
+     * Bind the cancellation to the current thread.
+     *
+     * @param cancellation the new cancellation, or null for none.
+     * @return the previously bound cancellation, to bind again once the
+     *      work is done.
+     */
+    public static Cancellation bind(Cancellation cancellation) {
+        Cancellation previous = CURRENT.get();
+        if (cancellation == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(cancellation);
+        }
+        return previous;
+    }
+
+
+    /**
+     *
+     * @return true if the current thread's work was cancelled.
+     */
+    public static boolean isCurrentCancelled() {
+        Cancellation cancellation = CURRENT.get();
+        return cancellation != null && cancellation.isCancelled();
+    }
+
+
+    /**
+     * Stop the current thread's work if it was cancelled.
+     *
+     * @param what the work, for the exception message.
+     */
+    public static void check(String what) throws CancelledException {
+        if (isCurrentCancelled()) {
+            throw new CancelledException(what);
+        }
+    }
+
+
+    /**
+     * Sleep, but stop early if the current thread's work is cancelled.
+     *
+     * @param what the work, for the exception message.
+     * @param millis how long to sleep.
+     */
+    public static void sleep(String what, long millis)
+            throws InterruptedException, CancelledException {
+        Cancellation cancellation = CURRENT.get();
+        if (cancellation == null) {
+            Thread.sleep(millis);
+            return;
+        }
+        long end = System.currentTimeMillis() + millis;
+        synchronized (cancellation) {
+            while (! cancellation.isCancelled()) {
+                long left = end - System.currentTimeMillis();
+                if (left <= 0L) {
+                    return;
+                }
+                cancellation.wait(Math.min(left, POLL_MS));
+            }
+        }
+        throw new CancelledException(what);
+    }
+
+
+    /**
+     * Wait for the future's result, but cancel it and stop early if the
+     * current thread's work is cancelled.
+     *
+     * @param what the work, for the exception message.
+     * @param future the result to wait for.
+     * @return the result.
+     * @throws IOException the failure the future completed with, as an
+     *      IOException if it wasn't one already.
+     */
+    public static <T> T await(String what, Future<T> future)
+            throws IOException {
+        try {
+            while (true) {
+                if (isCurrentCancelled()) {
+                    future.cancel(true);
+                    throw new CancelledException(what);
+                }
+                try {
+                    return future.get(POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // check again
+                }
+            }
+        } catch (CancellationException e) {
+            throw new CancelledException(what);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            InterruptedIOException ex = new InterruptedIOException(what);
+            ex.initCause(e);
+            throw ex;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(what, cause);
+        }
+    }
+}
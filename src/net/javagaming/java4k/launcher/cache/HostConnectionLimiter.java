@@ -0,0 +1,90 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of connections open at once to each host, with a fair
+ * semaphore per host.  This takes the place of a small thread pool when
+ * every download has its own thread.
+ *
+ * @author Groboclown
+ */
+class HostConnectionLimiter {
+    private final int perHost;
+    private final ConcurrentMap<String, Semaphore> hosts =
+            new ConcurrentHashMap<String, Semaphore>();
+
+
+    /**
+     *
+     * @param perHost the most connections open at once to one host.
+     */
+    HostConnectionLimiter(int perHost) {
+        if (perHost <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        this.perHost = perHost;
+    }
+
+
+    /**
+     * Wait a while for a connection to the host to become free.
+     *
+     * @param host host name
+     * @param timeoutMs how long to wait.
+     * @return true if the connection was taken, and must be given back with
+     *      {@link #release(String)}.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean tryAcquire(String host, long timeoutMs)
+            throws InterruptedException {
+        return getSemaphore(host).tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    void release(String host) {
+        getSemaphore(host).release();
+    }
+
+
+    private Semaphore getSemaphore(String host) {
+        Semaphore semaphore = hosts.get(host);
+        if (semaphore == null) {
+            semaphore = new Semaphore(perHost, true);
+            Semaphore existing = hosts.putIfAbsent(host, semaphore);
+            if (existing != null) {
+                semaphore = existing;
+            }
+        }
+        return semaphore;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces out requests to each host with a token bucket.  A host's bucket
+ * holds up to a second's worth of requests, so a short burst goes out at
+ * once, and after that requests are let through at the steady rate.
+ * <p/>
+ * A caller that has to wait reserves its token before sleeping, so
+ * threads waiting on the same host are let through in turn rather than
+ * all at once.
+ *
+ * @author Groboclown
+ */
+class HostRateLimiter {
+    private final double perSecond;
+    private final double capacity;
+    private final ConcurrentMap<String, Bucket> buckets =
+            new ConcurrentHashMap<String, Bucket>();
+
+
+    /**
+     *
+     * @param perSecond the steady number of requests per second allowed
+     *      to each host.
+     */
+    HostRateLimiter(double perSecond) {
+        if (perSecond <= 0.0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        this.perSecond = perSecond;
+        this.capacity = Math.max(1.0, perSecond);
+    }
+
+
+    /**
+     * Wait until a request may be made to the host.
+     *
+     * @param host host name
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void acquire(String host) throws InterruptedException {
+        Bucket bucket = buckets.get(host);
+        if (bucket == null) {
+            bucket = new Bucket();
+            Bucket existing = buckets.putIfAbsent(host, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        long wait = bucket.reserve();
+        if (wait > 0L) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+
+    private class Bucket {
+        private double tokens = capacity;
+        private long last = System.nanoTime();
+
+
+        /**
+         * Take a token, going into debt if there isn't one.
+         *
+         * @return nanoseconds until the token is really available.
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity,
+                    tokens + (now - last) * perSecond / 1e9);
+            last = now;
+            tokens -= 1.0;
+            if (tokens >= 0.0) {
+                return 0L;
+            }
+            return (long) (-tokens * 1e9 / perSecond);
+        }
+    }
+}
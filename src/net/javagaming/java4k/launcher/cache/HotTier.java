@@ -0,0 +1,275 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the contents of small, often read resources in memory, either as
+ * the raw bytes or as the decoded string, so a panel refresh doesn't need
+ * to go back to the disk.  The least recently used entries are dropped to
+ * stay under both a byte and an entry limit, and the whole tier shrinks
+ * on the next put when the heap is getting full.
+ * <p/>
+ * Values are only added if nothing was invalidated since the caller
+ * started reading them, so a read that races with a new download can't
+ * put the old contents back.
+ *
+ * @author Groboclown
+ */
+class HotTier {
+    // The fraction of the maximum heap above which the tier shrinks.
+    private static final double HEAP_HIGH_WATER = 0.85;
+
+    private final long maxBytes;
+    private final int maxEntries;
+    private final int maxEntryBytes;
+    private final Map<Key, Object> entries =
+            new LinkedHashMap<Key, Object>(16, 0.75f, true);
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long bytes = 0L;
+
+
+    HotTier(long maxBytes, int maxEntries) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        // Leave room for a good number of entries, so one large file
+        // can't push everything else out.
+        this.maxEntryBytes = (int) Math.min(Integer.MAX_VALUE, maxBytes / 16);
+    }
+
+
+    boolean isEnabled() {
+        return maxBytes > 0L && maxEntries > 0;
+    }
+
+
+    /**
+     *
+     * @param length size of the file in bytes
+     * @return true if a file this large may be kept.
+     */
+    boolean accepts(long length) {
+        return isEnabled() && length <= maxEntryBytes;
+    }
+
+
+    /**
+     * Call before reading a value that may be put into the tier.
+     *
+     * @return the token to pass to {@link #putBytes(URI, byte[], long)}
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+
+    byte[] getBytes(URI id) {
+        return (byte[]) get(new Key(id, null));
+    }
+
+
+    String getString(URI id, String encoding) {
+        return (String) get(new Key(id, encoding));
+    }
+
+
+    void putBytes(URI id, byte[] value, long token) {
+        put(id, null, value, token);
+    }
+
+
+    void putString(URI id, String encoding, String value, long token) {
+        put(id, encoding, value, token);
+    }
+
+
+    /**
+     * Drop every value held for the resource.
+     */
+    void invalidate(URI id) {
+        invalidate(Collections.singleton(id));
+    }
+
+
+    /**
+     * Drop every value held for any of the resources, in a single pass.
+     */
+    void invalidate(Collection<URI> ids) {
+        generation.incrementAndGet();
+        synchronized (entries) {
+            Iterator<Map.Entry<Key, Object>> iter =
+                    entries.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<Key, Object> e = iter.next();
+                if (ids.contains(e.getKey().id)) {
+                    bytes -= weigh(e.getValue());
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+
+    /**
+     * Drop the least recently used entries until the tier is down to a
+     * quarter of its byte limit.
+     */
+    void shrink() {
+        synchronized (entries) {
+            trim(maxBytes / 4, maxEntries);
+        }
+    }
+
+
+    long getByteCount() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+
+    private Object get(Key key) {
+        if (! isEnabled()) {
+            return null;
+        }
+        Object ret;
+        synchronized (entries) {
+            ret = entries.get(key);
+        }
+        if (ret == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return ret;
+    }
+
+
+    private void put(URI id, String encoding, Object value, long token) {
+        long weight = weigh(value);
+        if (! isEnabled() || weight > maxEntryBytes) {
+            return;
+        }
+        long limit = maxBytes;
+        if (isHeapHigh()) {
+            limit = maxBytes / 4;
+        }
+        synchronized (entries) {
+            if (token != generation.get()) {
+                // Invalidated while it was being read.
+                return;
+            }
+            Object old = entries.put(new Key(id, encoding), value);
+            if (old != null) {
+                bytes -= weigh(old);
+            }
+            bytes += weight;
+            trim(limit, maxEntries);
+        }
+    }
+
+
+    /**
+     * Must be called while holding the entries lock.
+     */
+    private void trim(long limit, int entryLimit) {
+        Iterator<Object> iter = entries.values().iterator();
+        while ((bytes > limit || entries.size() > entryLimit) &&
+                iter.hasNext()) {
+            bytes -= weigh(iter.next());
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+
+    private static boolean isHeapHigh() {
+        Runtime rt = Runtime.getRuntime();
+        long used = rt.totalMemory() - rt.freeMemory();
+        return used > rt.maxMemory() * HEAP_HIGH_WATER;
+    }
+
+
+    private static long weigh(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        return ((String) value).length() * 2L;
+    }
+
+
+    private static final class Key {
+        final URI id;
+        final String encoding;
+
+        Key(URI id, String encoding) {
+            this.id = id;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return id.equals(k.id) && (encoding == null
+                    ? k.encoding == null : encoding.equals(k.encoding));
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() * 31 +
+                    (encoding == null ? 0 : encoding.hashCode());
+        }
+    }
+}
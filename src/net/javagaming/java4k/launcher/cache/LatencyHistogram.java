@@ -0,0 +1,146 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import net.javagaming.java4k.launcher.json.JSONArray;
+import net.javagaming.java4k.launcher.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in power of two millisecond buckets.
+ * Recording only touches a few atomic longs, so it can be done on every
+ * download without creating garbage.
+ *
+ * @author Groboclown
+ */
+final class LatencyHistogram {
+    // Bucket 0 is under 1 ms; bucket n is under 2^n ms; the last bucket
+    // holds everything longer.
+    private static final int BUCKETS = 18;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+
+    void record(long nanos) {
+        if (nanos < 0L) {
+            nanos = 0L;
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = ms == 0L ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && ! maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+
+    long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     *
+     * @return the number of times recorded in each bucket; bucket 0 is
+     *      under 1 ms, and bucket n is under 2^n ms.
+     */
+    long[] getBuckets() {
+        long[] ret = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            ret[i] = buckets.get(i);
+        }
+        return ret;
+    }
+
+
+    /**
+     *
+     * @param fraction 0.5 for the median, and so on.
+     * @return the upper bound in milliseconds of the bucket holding the
+     *      given fraction of the recorded times, or -1 if nothing was
+     *      recorded.
+     */
+    long getPercentileMillis(double fraction) {
+        long[] counts = getBuckets();
+        long total = 0L;
+        for (long c: counts) {
+            total += c;
+        }
+        if (total == 0L) {
+            return -1L;
+        }
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS - 1; ++i) {
+            seen += counts[i];
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+
+    JSONObject toJSon() {
+        JSONObject obj = new JSONObject();
+        long n = count.get();
+        obj.put("count", n);
+        if (n > 0L) {
+            obj.put("meanMs", TimeUnit.NANOSECONDS.toMillis(
+                    totalNanos.get() / n));
+            obj.put("maxMs", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+            obj.put("p50Ms", getPercentileMillis(0.5));
+            obj.put("p90Ms", getPercentileMillis(0.9));
+            obj.put("p99Ms", getPercentileMillis(0.99));
+            JSONArray hist = new JSONArray();
+            long[] counts = getBuckets();
+            for (int i = 0; i < BUCKETS; ++i) {
+                if (counts[i] > 0L) {
+                    JSONObject bucket = new JSONObject();
+                    if (i == BUCKETS - 1) {
+                        bucket.put("atLeastMs", 1L << (i - 1));
+                    } else {
+                        bucket.put("underMs", 1L << i);
+                    }
+                    bucket.put("count", counts[i]);
+                    hist.put(bucket);
+                }
+            }
+            obj.put("buckets", hist);
+        }
+        return obj;
+    }
+}
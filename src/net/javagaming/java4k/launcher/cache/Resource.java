@@ -30,6 +30,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The general resource managed by the {@link Cache}.
@@ -95,6 +96,48 @@ public interface Resource {
     public String readAsString(String encoding) throws IOException;
 
 
+    /**
+     * Read the cached copy right away, even if it may be out of date.  A
+     * stale copy is refreshed in the background, and the
+     * {@link ResourceListener}s registered with the {@link Cache} are told
+     * if the contents changed.  If nothing is cached yet, this waits for
+     * the download like {@link #read()}.
+     *
+     * @return the data for this resource.
+     */
+    public InputStream readCached() throws IOException;
+
+
+    /**
+     * The string form of {@link #readCached()}.
+     *
+     * @param encoding the encoding type
+     * @return the encoded string
+     */
+    public String readCachedAsString(String encoding) throws IOException;
+
+
+    /**
+     * Read the whole resource without blocking the calling thread, so it
+     * may be called from the event dispatch thread.  The download and read
+     * happen in the cache's read threads, under the caller's
+     * {@link Cancellation}; cancelling the returned future stops them too.
+     *
+     * @return completes with the contents, or with the
+     *      {@link IOException} that {@link #read()} would have thrown.
+     */
+    public CompletableFuture<byte[]> readBytesAsync();
+
+
+    /**
+     * The string form of {@link #readBytesAsync()}.
+     *
+     * @param encoding the encoding type
+     * @return completes with the decoded contents.
+     */
+    public CompletableFuture<String> readStringAsync(String encoding);
+
+
     /**
      * Flush the cached file, and all child files.
      */
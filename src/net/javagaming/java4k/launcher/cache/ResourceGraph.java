@@ -0,0 +1,123 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parent / child links between cached resources.  Each URI is given a
+ * small integer id the first time it's seen, and each node's children are
+ * kept as a plain int array of ids, so a contest with thousands of games
+ * costs a few arrays rather than a set per resource.
+ * <p/>
+ * Ids are never reused while the launcher runs; they are not saved.
+ *
+ * @author Groboclown
+ */
+final class ResourceGraph {
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private final Map<URI, Integer> ids = new HashMap<URI, Integer>();
+    private URI[] uris = new URI[64];
+    private int[][] children = new int[64][];
+    private int[] childCount = new int[64];
+    private int size = 0;
+
+
+    /**
+     *
+     * @param uri resource URI
+     * @return the id for the URI, allocating one if it's new.
+     */
+    synchronized int getId(URI uri) {
+        Integer id = ids.get(uri);
+        if (id != null) {
+            return id;
+        }
+        if (size >= uris.length) {
+            int len = uris.length * 2;
+            uris = Arrays.copyOf(uris, len);
+            children = Arrays.copyOf(children, len);
+            childCount = Arrays.copyOf(childCount, len);
+        }
+        uris[size] = uri;
+        children[size] = NO_CHILDREN;
+        ids.put(uri, size);
+        return size++;
+    }
+
+
+    synchronized URI getURI(int id) {
+        return uris[id];
+    }
+
+
+    /**
+     *
+     * @return false if the child was already linked to the parent.
+     */
+    synchronized boolean addChild(int parent, int child) {
+        int[] kids = children[parent];
+        int count = childCount[parent];
+        for (int i = 0; i < count; ++i) {
+            if (kids[i] == child) {
+                return false;
+            }
+        }
+        if (count >= kids.length) {
+            kids = Arrays.copyOf(kids, Math.max(4, count * 2));
+            children[parent] = kids;
+        }
+        kids[count] = child;
+        childCount[parent] = count + 1;
+        return true;
+    }
+
+
+    synchronized List<URI> getChildren(int parent) {
+        int count = childCount[parent];
+        List<URI> ret = new ArrayList<URI>(count);
+        for (int i = 0; i < count; ++i) {
+            ret.add(uris[children[parent][i]]);
+        }
+        return ret;
+    }
+
+
+    /**
+     *
+     * @return a copy of the ids of the node's children.
+     */
+    synchronized int[] getChildIds(int parent) {
+        return Arrays.copyOf(children[parent], childCount[parent]);
+    }
+}
@@ -8,9 +8,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -18,27 +22,66 @@ import java.util.Map;
  * circumstances, the requested URL is no longer available, or has moved to
  * a different location, which may cause 302 redirection problems (Java does
  * not automatically redirect from http to https, or vice versa).
+ * <p/>
+ * A mapping's source is either an exact URL, a prefix ending in "*", such
+ * as "http://example.com/~author/*", or a host wildcard such as
+ * "http://*.example.com/*".  Each "*" in the target is replaced, in order,
+ * by what the source's wildcards matched.  An exact match wins over a
+ * prefix, a longer prefix over a shorter one, and either over a host
+ * wildcard.
+ * <p/>
+ * The rules are compiled into a trie when the map is loaded.  The trie is
+ * keyed with the host's labels reversed ("http://com.example.www/..."), so
+ * a host wildcard is just another prefix.  Resolved URIs are kept in a
+ * bounded pool, so asking again for the same string returns the same
+ * instance without parsing it.
  *
  * @author Groboclown
  */
 public class UrlMap {
     private static final String MAPPING_FILE = "fixed-urls.json";
-    private final Map<String, URI> MAP;
+    private static final int POOL_SIZE = 4096;
+
+    private final Node root = new Node();
+    private final List<String> redirected = new ArrayList<String>();
+    private final UriPool pool = new UriPool(POOL_SIZE);
 
 
     public UrlMap(Map<String, String> properties) {
-        MAP = Collections.unmodifiableMap(convertFromJSon(properties));
+        JSONArray maps;
+        try {
+            maps = loadMap();
+        } catch (IOException e) {
+            System.err.println("[UrlMap] WARNING " + e.getMessage());
+            maps = new JSONArray();
+        }
+        compile(maps, properties);
+    }
+
+
+    /**
+     * Use the given mappings rather than the ones shipped with the
+     * launcher.
+     *
+     * @param maps the "map" array, in the mapping file's format.
+     */
+    UrlMap(JSONArray maps, Map<String, String> properties) {
+        compile(maps, properties);
     }
 
 
     public URI getURI(String src) throws IOException {
-        URI uri = MAP.get(src);
+        URI uri = pool.get(src);
         if (uri == null) {
             try {
-                uri = new URI(src);
+                uri = map(src);
+                if (uri == null) {
+                    uri = new URI(src);
+                }
             } catch (URISyntaxException e) {
                 throw new IOException(e);
             }
+            pool.put(src, uri);
         }
         return uri;
     }
@@ -68,58 +111,204 @@ public class UrlMap {
         }
     }
 
+    /**
+     *
+     * @return the sources of the exact mappings; prefix and host wildcard
+     *      mappings have no single URL to list.
+     */
     public Collection<String> getRedirectedUris() {
-        return Collections.unmodifiableCollection(MAP.keySet());
+        return Collections.unmodifiableCollection(redirected);
     }
 
 
+    /**
+     *
+     * @param src requested URL
+     * @return the URL it maps to, or null if no rule matches.
+     */
+    private URI map(String src) throws URISyntaxException {
+        Key key = new Key(src);
+        Node node = root;
+        Rule prefix = null;
+        int prefixEnd = 0;
+        List<Node> hostNodes = null;
+        for (int i = 0; ; ++i) {
+            if (node.prefix != null) {
+                prefix = node.prefix;
+                prefixEnd = i;
+            }
+            if (node.hostRules != null) {
+                if (hostNodes == null) {
+                    hostNodes = new ArrayList<Node>(2);
+                }
+                hostNodes.add(node);
+            }
+            if (i >= key.key.length()) {
+                if (node.exact != null) {
+                    return node.exact.uri;
+                }
+                break;
+            }
+            node = node.get(key.key.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
 
+        if (prefix != null) {
+            return prefix.rewrite(src.substring(prefixEnd), null);
+        }
+        if (hostNodes != null && ! key.hasPort) {
+            // The most specific domain first.
+            for (int i = hostNodes.size() - 1; i >= 0; --i) {
+                for (HostRule r: hostNodes.get(i).hostRules) {
+                    URI ret = r.match(key, src);
+                    if (ret != null) {
+                        return ret;
+                    }
+                }
+            }
+        }
+        return null;
+    }
 
-    private static Map<String, URI> convertFromJSon(
-            Map<String, String> properties) {
-        final Map<String, URI> ret = new HashMap<String, URI>();
 
-        final JSONArray maps;
-        try {
-            maps = loadMap();
-        } catch (IOException e) {
-            System.err.println("[UrlMap] WARNING " + e.getMessage());
-            return ret;
-        }
+    private void compile(JSONArray maps, Map<String, String> properties) {
         for (int i = 0; i < maps.length(); ++i) {
             final JSONArray map = maps.getJSONArray(i);
-            if (map.length() < 2) {
+            if (map.length() < 2 || ! (map.get(1) instanceof String)) {
                 System.err.println(
                         "[UrlMap] WARNING invalid mapping in map element " + i);
+                continue;
+            }
+            String src = expand(map.getString(0), properties);
+            String tgt = expand(map.getString(1), properties);
+            try {
+                addRule(src, tgt);
+            } catch (URISyntaxException e) {
+                System.err.println("[UrlMap] WARNING mapping element " + i +
+                    " has invalid URI syntax (" + map.getString(1) +
+                    " -> " + tgt + ")");
+            } catch (IllegalArgumentException e) {
+                System.err.println("[UrlMap] WARNING mapping element " + i +
+                    ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    private void addRule(String src, String tgt) throws URISyntaxException {
+        int star = src.indexOf('*');
+        if (star < 0) {
+            Node node = root.add(new Key(src).key);
+            if (node.exact == null) {
+                node.exact = new Rule(tgt);
+                redirected.add(src);
+            }
+            return;
+        }
+
+        int authority = getAuthorityStart(src);
+        if (authority >= 0 && star == authority &&
+                src.startsWith("*.", star)) {
+            // host wildcard
+            int end = getAuthorityEnd(src, authority);
+            String domain = src.substring(star + 2, end);
+            String path = src.substring(end);
+            boolean pathPrefix = path.endsWith("*");
+            if (pathPrefix) {
+                path = path.substring(0, path.length() - 1);
+            }
+            if (domain.indexOf('*') >= 0 || domain.indexOf(':') >= 0 ||
+                    path.indexOf('*') >= 0) {
+                throw new IllegalArgumentException(
+                        "unsupported wildcard in " + src);
+            }
+            Node node = root.add(new Key(src.substring(0, star) + domain +
+                    "/").key.substring(0, star + domain.length()) + ".");
+            if (node.hostRules == null) {
+                node.hostRules = new ArrayList<HostRule>(1);
+            }
+            node.hostRules.add(new HostRule(domain.toLowerCase(Locale.ENGLISH),
+                    path, pathPrefix, tgt));
+            return;
+        }
+
+        if (star != src.length() - 1 ||
+                (authority >= 0 && star <= getAuthorityEnd(src, authority))) {
+            // A prefix must cover the whole host, or the reversed key
+            // would match other hosts.
+            throw new IllegalArgumentException(
+                    "unsupported wildcard in " + src);
+        }
+        Node node = root.add(new Key(src.substring(0, star)).key);
+        if (node.prefix == null) {
+            node.prefix = new Rule(tgt);
+        }
+    }
+
+
+    /**
+     * Replace each "${name}" with the property's value, in one pass.
+     * Unknown names are left as they are.
+     */
+    static String expand(String s, Map<String, String> properties) {
+        int pos = s.indexOf("${");
+        if (pos < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 32);
+        int last = 0;
+        while (pos >= 0) {
+            int end = s.indexOf('}', pos + 2);
+            if (end < 0) {
+                break;
+            }
+            String value = properties.get(s.substring(pos + 2, end));
+            sb.append(s, last, pos);
+            if (value == null) {
+                sb.append(s, pos, end + 1);
             } else {
-                String src = convertFromJSon(map.getString(0), properties);
-                String tgt = convertFromJSon(map.getString(1), properties);
-                try {
-                    URI tgtUri = new URI(tgt);
-                    ret.put(src, tgtUri);
-                } catch (URISyntaxException e) {
-                    System.err.println("[UrlMap] WARNING mapping element " + i +
-                        " has invalid URI syntax (" + map.getString(1) +
-                        " -> " + tgt + ")");
-                }
+                sb.append(value);
             }
+            last = end + 1;
+            pos = s.indexOf("${", last);
         }
+        sb.append(s, last, s.length());
+        return sb.toString();
+    }
+
 
-        return ret;
+    /**
+     *
+     * @return where the host starts, or -1 if the URL has no plain
+     *      "scheme://host" authority.
+     */
+    private static int getAuthorityStart(String s) {
+        int pos = s.indexOf("://");
+        if (pos <= 0) {
+            return -1;
+        }
+        for (int i = 0; i < pos; ++i) {
+            char c = s.charAt(i);
+            if (! Character.isLetterOrDigit(c) && c != '+' && c != '-' &&
+                    c != '.') {
+                // such as "file:http://..."
+                return -1;
+            }
+        }
+        return pos + 3;
     }
 
 
-    private static String convertFromJSon(String s,
-            final Map<String, String> properties) {
-        for (Map.Entry<String, String> e: properties.entrySet()) {
-            String k = "${" + e.getKey() + "}";
-            int pos;
-            while ((pos = s.indexOf(k)) >= 0) {
-                s = s.substring(0, pos) + e.getValue() +
-                        s.substring(pos + k.length());
+    private static int getAuthorityEnd(String s, int start) {
+        for (int i = start; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                return i;
             }
         }
-        return s;
+        return s.length();
     }
 
 
@@ -139,4 +328,181 @@ public class UrlMap {
             in.close();
         }
     }
+
+
+
+    /**
+     * A URL split up for matching.  The scheme and host are lower cased and
+     * the host's labels reversed; everything after the host is unchanged,
+     * so it lines up with the original string.
+     */
+    private static class Key {
+        final String key;
+        final String host;
+        final boolean hasPort;
+        final int pathStart;
+
+        Key(String s) {
+            int start = getAuthorityStart(s);
+            int end = start < 0 ? -1 : getAuthorityEnd(s, start);
+            String authority = start < 0 ? null : s.substring(start, end);
+            if (authority == null || authority.indexOf('@') >= 0 ||
+                    authority.startsWith("[")) {
+                key = s;
+                host = null;
+                hasPort = false;
+                pathStart = -1;
+                return;
+            }
+            int colon = authority.indexOf(':');
+            host = (colon < 0 ? authority : authority.substring(0, colon))
+                    .toLowerCase(Locale.ENGLISH);
+            hasPort = colon >= 0;
+            pathStart = end;
+
+            StringBuilder sb = new StringBuilder(s.length());
+            sb.append(s.substring(0, start).toLowerCase(Locale.ENGLISH));
+            int labelEnd = host.length();
+            for (int i = host.length() - 1; i >= -1; --i) {
+                if (i < 0 || host.charAt(i) == '.') {
+                    sb.append(host, i + 1, labelEnd);
+                    if (i >= 0) {
+                        sb.append('.');
+                    }
+                    labelEnd = i;
+                }
+            }
+            if (colon >= 0) {
+                sb.append(authority, colon, authority.length());
+            }
+            sb.append(s, end, s.length());
+            key = sb.toString();
+        }
+    }
+
+
+    private static class Node {
+        private char[] chars = new char[0];
+        private Node[] kids = new Node[0];
+        Rule exact;
+        Rule prefix;
+        List<HostRule> hostRules;
+
+        Node get(char c) {
+            for (int i = 0; i < chars.length; ++i) {
+                if (chars[i] == c) {
+                    return kids[i];
+                }
+            }
+            return null;
+        }
+
+        Node add(String key) {
+            Node node = this;
+            for (int i = 0; i < key.length(); ++i) {
+                char c = key.charAt(i);
+                Node next = node.get(c);
+                if (next == null) {
+                    next = new Node();
+                    int n = node.chars.length;
+                    char[] c2 = new char[n + 1];
+                    System.arraycopy(node.chars, 0, c2, 0, n);
+                    c2[n] = c;
+                    Node[] k2 = new Node[n + 1];
+                    System.arraycopy(node.kids, 0, k2, 0, n);
+                    k2[n] = next;
+                    node.chars = c2;
+                    node.kids = k2;
+                }
+                node = next;
+            }
+            return node;
+        }
+    }
+
+
+    private static class Rule {
+        final String target;
+        // parsed once for a target without wildcards
+        final URI uri;
+
+        Rule(String target) throws URISyntaxException {
+            this.target = target;
+            this.uri = new URI(target.replace("*", ""));
+        }
+
+        /**
+         * Put the matched parts into the target's wildcards, in order.
+         */
+        URI rewrite(String first, String second) throws URISyntaxException {
+            if (target.indexOf('*') < 0) {
+                return uri;
+            }
+            StringBuilder sb = new StringBuilder(target.length() + 64);
+            String[] parts = { first, second };
+            int part = 0;
+            for (int i = 0; i < target.length(); ++i) {
+                char c = target.charAt(i);
+                if (c != '*') {
+                    sb.append(c);
+                } else if (part < parts.length && parts[part] != null) {
+                    sb.append(parts[part++]);
+                }
+            }
+            return new URI(sb.toString());
+        }
+    }
+
+
+    private static class HostRule extends Rule {
+        final String domain;
+        final String path;
+        final boolean pathPrefix;
+
+        HostRule(String domain, String path, boolean pathPrefix,
+                String target) throws URISyntaxException {
+            super(target);
+            this.domain = domain;
+            this.path = path;
+            this.pathPrefix = pathPrefix;
+        }
+
+        URI match(Key key, String src) throws URISyntaxException {
+            String rest = src.substring(key.pathStart);
+            if (pathPrefix ? ! rest.startsWith(path) : ! rest.equals(path)) {
+                return null;
+            }
+            String sub = key.host.substring(0,
+                    key.host.length() - domain.length() - 1);
+            return rewrite(sub, pathPrefix
+                    ? rest.substring(path.length()) : null);
+        }
+    }
+
+
+    /**
+     * The most recently used URIs, by the string they were asked for with.
+     */
+    private static class UriPool {
+        private final int maxEntries;
+        private final LinkedHashMap<String, URI> entries =
+                new LinkedHashMap<String, URI>(64, 0.75f, true);
+
+        UriPool(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        synchronized URI get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, URI uri) {
+            entries.put(key, uri);
+            if (entries.size() > maxEntries) {
+                Iterator<URI> iter = entries.values().iterator();
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
 }
@@ -32,6 +32,7 @@ import net.javagaming.java4k.launcher.GameDescriptionListResourceReader;
 import net.javagaming.java4k.launcher.LauncherBundle;
 import net.javagaming.java4k.launcher.UserComment;
 import net.javagaming.java4k.launcher.cache.Cache;
+import net.javagaming.java4k.launcher.cache.CancelledException;
 import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.json.JSONArray;
 import net.javagaming.java4k.launcher.json.JSONObject;
@@ -70,10 +71,13 @@ public class Java4kComGameDescriptionListResourceReader
             ProgressWorker.Publisher<GameDescription> controller) throws Exception {
         controller.advance("description.progress.download-entries",
                 getName());
-        String data = resource.readAsString(Resource.DEFAULT_ENCODING);
+        String data = resource.readCachedAsString(Resource.DEFAULT_ENCODING);
 
         controller.advance("description.progress.process-entries",
                 getName());
+        if (controller.isCancelled()) {
+            throw new CancelledException(getName());
+        }
         JSONArray list = (JSONArray) new JSONTokener(data).nextValue();
         controller.advance(0, list.length(), 0);
         //System.out.println("- read " + list.length() + " entries");
@@ -84,6 +88,9 @@ public class Java4kComGameDescriptionListResourceReader
 
 
         for (int i = 0; i < list.length(); ++i) {
+            if (controller.isCancelled()) {
+                throw new CancelledException(getName());
+            }
             try {
                 JSONObject obj = list.getJSONObject(i);
 
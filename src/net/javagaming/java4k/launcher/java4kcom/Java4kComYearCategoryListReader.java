@@ -66,7 +66,7 @@ public class Java4kComYearCategoryListReader
 
         // This method just doesn't load the <a> tags right
         //HTMLDocument page = WebUtil.loadWebPage(url);
-        String page = r.readAsString(Resource.DEFAULT_ENCODING);
+        String page = r.readCachedAsString(Resource.DEFAULT_ENCODING);
 
         controller.advanceTo(50);
 
@@ -62,12 +62,21 @@ public class ProgressState {
         this.labelText = labelText;
     }
 
+    public ProgressState(String labelText, boolean indeterminate,
+            int min, int max, int value) {
+        this.indeterminate = indeterminate;
+        this.min = min;
+        this.max = max;
+        this.value = value;
+        this.labelText = labelText;
+    }
+
     public ProgressState(ProgressState parent, int valueIncr) {
         this.indeterminate = false;
         this.labelText = parent == null ? "" : parent.getLabelText();
         this.min = parent == null ? Math.min(0, valueIncr) : parent.getMinimum();
         this.max = parent == null ? Math.max(0, valueIncr) : parent.getMaximum();
-        this.value = Math.min(this.min, Math.max(
+        this.value = Math.max(this.min, Math.min(
                 this.max, (parent == null ? 0 : parent.getValue()) + valueIncr));
     }
 
@@ -76,7 +85,7 @@ public class ProgressState {
         this.labelText = labelText;
         this.min = parent.getMinimum();
         this.max = parent.getMaximum();
-        this.value = Math.min(this.min, Math.max(
+        this.value = Math.max(this.min, Math.min(
                 this.max, parent.getValue() + valueIncr));
     }
 
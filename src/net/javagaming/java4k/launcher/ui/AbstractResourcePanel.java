@@ -29,6 +29,10 @@ package net.javagaming.java4k.launcher.ui;
 import net.javagaming.java4k.launcher.ActionSource;
 import net.javagaming.java4k.launcher.LauncherBundle;
 import net.javagaming.java4k.launcher.LauncherManager;
+import net.javagaming.java4k.launcher.WorkPriority;
+import net.javagaming.java4k.launcher.cache.Cache;
+import net.javagaming.java4k.launcher.cache.CancelledException;
+import net.javagaming.java4k.launcher.cache.Cancellation;
 import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.cache.ResourceListener;
 import net.javagaming.java4k.launcher.progress.ProgressController;
@@ -66,6 +70,34 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
     private final Icon usingCachedIcon;
     private final Icon currentIcon;
     private volatile ResourceProcessWorker activeWorker;
+    private volatile boolean refreshPending = false;
+
+    // Redisplay when a background refresh brings in new contents.  If the
+    // panel is still loading, the refresh waits for that load to finish,
+    // since it may have read the older copy.
+    private final ResourceListener refreshListener = new ResourceListener() {
+        @Override
+        public void resourceLoaded(Resource r) {
+            Resource current = resource;
+            if (current != null && current.getURI().equals(r.getURI())) {
+                if (activeWorker == null) {
+                    refresh(current);
+                } else {
+                    refreshPending = true;
+                }
+            }
+        }
+
+        @Override
+        public void resourceDownloadError(Resource r, IOException e) {
+            // the cached copy is still displayed
+        }
+
+        @Override
+        public void resourceDownloadStarted(Resource r) {
+            // do nothing
+        }
+    };
 
     public AbstractResourcePanel(LauncherManager launcherManager) {
         this(launcherManager, new BorderLayout());
@@ -87,6 +119,24 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
     }
 
 
+    /**
+     * Only listen for refreshes while the panel is showing, so a discarded
+     * panel isn't kept by the cache.
+     */
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        Cache.getInstance().addResourceListener(refreshListener);
+    }
+
+
+    @Override
+    public void removeNotify() {
+        Cache.getInstance().removeResourceListener(refreshListener);
+        super.removeNotify();
+    }
+
+
     public LauncherManager getLauncherManager() {
         return launcherManager;
     }
@@ -126,12 +176,38 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
 
 
     public void loadResource(ActionSource source, Resource r, boolean flash) {
+        loadResource(source, r, flash, WorkPriority.INTERACTIVE);
+    }
+
+
+    /**
+     * Only the latest load for this panel matters, so the panel is the
+     * supersession key for both the download and the processing; a quick
+     * run of loads only downloads and processes the first and the last.
+     * The load it replaces is cancelled, even if it already started.
+     */
+    private void loadResource(ActionSource source, Resource r, boolean flash,
+            WorkPriority priority) {
         this.resource = r;
+        refreshPending = false;
 
         setLoadingIcon();
 
-        activeWorker = new ResourceProcessWorker(r, source);
-        launcherManager.getWorkerManager().download(r, activeWorker, flash);
+        ResourceProcessWorker previous = activeWorker;
+        if (previous != null) {
+            previous.cancellation.cancel();
+        }
+        ResourceProcessWorker worker = new ResourceProcessWorker(r, source,
+                priority);
+        activeWorker = worker;
+        launcherManager.getWorkerManager().download(r, worker, flash,
+                priority, this, worker.cancellation);
+    }
+
+
+    private void refresh(Resource r) {
+        loadResource(ActionSource.DETAILS_DOWNLOAD, r, false,
+                WorkPriority.VISIBLE);
     }
 
 
@@ -282,10 +358,14 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
         private int state;
         private IOException failure;
         private final ActionSource source;
+        private final WorkPriority priority;
+        private final Cancellation cancellation = new Cancellation();
 
-        public ResourceProcessWorker(Resource r, ActionSource source) {
+        public ResourceProcessWorker(Resource r, ActionSource source,
+                WorkPriority priority) {
             this.r = r;
             this.source = source;
+            this.priority = priority;
         }
 
         @Override
@@ -296,6 +376,8 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
             if (activeWorker == this && (state == 1 || state == 2)) {
                 try {
                     processLoadedResource(r, controller);
+                } catch (CancelledException e) {
+                    // replaced by a newer load, or stopped by the user
                 } catch (ThreadDeath t) {
                     throw t;
                 } catch (VirtualMachineError e) {
@@ -369,6 +451,10 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
                     } else {
                         setNotAvailableIcon("");
                     }
+                    if (refreshPending) {
+                        // newer contents came in while this load ran
+                        refresh(r);
+                    }
                 }
             }
         }
@@ -382,7 +468,8 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
                 state = 2;
             }
             launcherManager.getWorkerManager().startWorker(
-                    resource.toString(), source, false, this);
+                    resource.toString(), source, false, this, priority,
+                    AbstractResourcePanel.this, cancellation);
         }
 
 
@@ -409,6 +496,9 @@ public abstract class AbstractResourcePanel<V> extends JPanel {
                 throw new RuntimeException(e);
             } finally {
                 activeWorker = null;
+                if (refreshPending) {
+                    refresh(r);
+                }
             }
         }
 
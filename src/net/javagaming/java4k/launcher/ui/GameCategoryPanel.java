@@ -31,6 +31,7 @@ import net.javagaming.java4k.launcher.GameDescriptionListResourceReader;
 import net.javagaming.java4k.launcher.GameSelectAction;
 import net.javagaming.java4k.launcher.LauncherBundle;
 import net.javagaming.java4k.launcher.LauncherManager;
+import net.javagaming.java4k.launcher.cache.Cache;
 import net.javagaming.java4k.launcher.cache.Resource;
 
 import javax.swing.JButton;
@@ -117,8 +118,13 @@ public class GameCategoryPanel
                 return;
             }
             currentSelection = cat;
+            Resource previous = selectionPanel.getResource();
             selectionPanel.setConsumer(categories.get(cat));
             selectionPanel.loadResource(ActionSource.DETAILS_DOWNLOAD);
+
+            // Keep the selected contest's games in the cache.
+            Cache.getInstance().pin(selectionPanel.getResource());
+            Cache.getInstance().unpin(previous);
         }
     }
 
@@ -36,6 +36,8 @@ import javax.swing.JLabel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.AbstractTableModel;
@@ -43,6 +45,8 @@ import javax.swing.table.TableCellRenderer;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -69,7 +73,8 @@ public class GameSelectionPanel extends ResourceReaderPanel<GameDescription> {
                 new ArrayList<GameDescription>());
 
         appletList = new JTable(new AppletListTableModel());
-        add(new JScrollPane(appletList), BorderLayout.CENTER);
+        JScrollPane scroll = new JScrollPane(appletList);
+        add(scroll, BorderLayout.CENTER);
         appletList.setRowSelectionAllowed(false);
         appletList.setCellSelectionEnabled(true);
         appletList.setColumnSelectionAllowed(false);
@@ -86,6 +91,14 @@ public class GameSelectionPanel extends ResourceReaderPanel<GameDescription> {
         });
 
         appletList.setDefaultRenderer(Object.class, new HighlightRenderer());
+
+        // Fetch the games in the background as they scroll into view.
+        scroll.getViewport().addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                prefetchVisibleGames();
+            }
+        });
     }
 
     private GameDescription getActiveApplet() {
@@ -97,6 +110,28 @@ public class GameSelectionPanel extends ResourceReaderPanel<GameDescription> {
     }
 
 
+    private void prefetchVisibleGames() {
+        Rectangle view = appletList.getVisibleRect();
+        int first = appletList.rowAtPoint(new Point(0, view.y));
+        int last = appletList.rowAtPoint(
+                new Point(0, view.y + view.height - 1));
+        if (first < 0) {
+            return;
+        }
+        if (last < 0) {
+            last = appletList.getRowCount() - 1;
+        }
+        List<GameDescription> games = new ArrayList<GameDescription>();
+        synchronized (currentSources) {
+            for (int i = first; i <= last && i < currentSources.size(); ++i) {
+                games.add(currentSources.get(i));
+            }
+        }
+        getLauncherManager().getWorkerManager().getPrefetcher()
+                .setVisibleGames(games);
+    }
+
+
     boolean isRowSelected(int row) {
         return selectedRow == row;
     }
@@ -104,6 +139,8 @@ public class GameSelectionPanel extends ResourceReaderPanel<GameDescription> {
     @Override
     protected void onResourceLoadStarted(Resource r) {
         //appletList.clearSelection();
+        getLauncherManager().getWorkerManager().getPrefetcher()
+                .setVisibleGames(Collections.<GameDescription>emptyList());
         int count = currentSources.size();
         currentSources.clear();
         if (count > 0) {
@@ -124,6 +161,7 @@ public class GameSelectionPanel extends ResourceReaderPanel<GameDescription> {
     @Override
     protected void onResourceProcessed() throws Exception {
         ((AppletListTableModel) appletList.getModel()).fireTableDataChanged();
+        prefetchVisibleGames();
     }
 
     @Override
@@ -32,6 +32,7 @@ import net.javagaming.java4k.launcher.GameDescription;
 import net.javagaming.java4k.launcher.GameDetail;
 import net.javagaming.java4k.launcher.applet.AppletGameDetail;
 import net.javagaming.java4k.launcher.cache.Cache;
+import net.javagaming.java4k.launcher.cache.Cancellation;
 import net.javagaming.java4k.launcher.cache.Resource;
 import net.javagaming.java4k.launcher.progress.ProgressWorker;
 import org.w3c.dom.Document;
@@ -44,9 +45,13 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.awt.Dimension;
+import java.awt.Image;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -72,12 +77,123 @@ public class JnlpDetailResourceReader implements
     public void processLoadedResource(Resource jnlp,
             ProgressWorker.Publisher<GameDetail> controller,
             GameDescription source) throws Exception {
-        Document doc = loadXml(jnlp);
-        controller.advanceBy(30);
+        // The stages run on the cache's read threads, but the progress is
+        // only reported here, on the worker's own thread, as each one
+        // finishes.  A cancelled stage throws, so nothing is reported
+        // after that.
+        String name = source.getName();
+        JnlpInfo info = Cancellation.await(name, loadInfo(jnlp));
+        controller.advanceBy(35);
+        // everything from here on downloads
+        Cancellation.check(name);
+        CompletableFuture<String> mainClass = loadMainClass(jnlp, info);
+        CompletableFuture<Image> icon = loadIcon(source);
+        String className = Cancellation.await(name, mainClass);
+        controller.advanceBy(10);
+        Image image = Cancellation.await(name, icon);
+        controller.publish(createDetail(jnlp, source, info, className, image));
+        controller.advanceTo(100);
+    }
+
+
+    /**
+     * Load the game detail as a chain of reads, none of which holds a
+     * thread while it waits for the one before it.  Once the JNLP file is
+     * parsed, the jar (with the main class from its manifest, if the JNLP
+     * file doesn't name one) and the icon are read at the same time.
+     *
+     * @param jnlp the JNLP file
+     * @param source the game
+     * @return completes with the detail.
+     */
+    public CompletableFuture<GameDetail> loadDetail(final Resource jnlp,
+            final GameDescription source) {
+        return loadInfo(jnlp).thenCompose(info -> loadMainClass(jnlp, info)
+                .thenCombine(loadIcon(source), (className, image) -> {
+                    try {
+                        return createDetail(jnlp, source, info, className,
+                                image);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }));
+    }
+
+
+    private CompletableFuture<JnlpInfo> loadInfo(final Resource jnlp) {
+        return jnlp.readBytesAsync().thenApply(data -> {
+            try {
+                return parseJnlp(jnlp, data);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+
+    /**
+     * @return completes with the main class named by the JNLP file, or else
+     *      by the jar's manifest.  The jar is read either way, so it's
+     *      cached for the launch.
+     */
+    private CompletableFuture<String> loadMainClass(final Resource jnlp,
+            final JnlpInfo info) {
+        return info.jar.readBytesAsync().thenApply(jarData -> {
+            if (info.mainClass != null) {
+                return info.mainClass;
+            }
+            // need to load it from the manifest "Main-Class" value.
+            String name;
+            try {
+                name = loadManifestMainClass(jarData);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            if (name == null || name.length() <= 0) {
+                throw new CompletionException(new IOException(
+                        "JNLP file (" + jnlp.getURI() +
+                        ") did not declare the main class, nor did the jar file's manifest (" +
+                        info.jar.getURI() + ")"));
+            }
+            info.type = WEBSTART;
+            return name;
+        });
+    }
+
+
+    /**
+     * @return completes with the game's icon, or null if it has none.
+     */
+    private CompletableFuture<Image> loadIcon(GameDescription source) {
+        if (source.getIconResource() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return source.getIconResource().readBytesAsync().thenApply(data -> {
+            try {
+                return ImageIO.read(new ByteArrayInputStream(data));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+
+    private static class JnlpInfo {
+        Resource jar;
+        int type = UNKNOWN;
+        Dimension size;
+        String mainClass;
+    }
+
+
+    private JnlpInfo parseJnlp(Resource jnlp, byte[] data)
+            throws IOException {
+        Document doc = loadXml(jnlp, data);
         Element top = doc.getDocumentElement();
         if (!"jnlp".equals(top.getTagName().toLowerCase())) {
             throw new JnlpFormatException(jnlp.getURI());
         }
+        JnlpInfo info = new JnlpInfo();
 
 
 
@@ -98,8 +214,6 @@ public class JnlpDetailResourceReader implements
 </jnlp>
         */
 
-        Resource jar;
-
         // For now, just load the resource and main class, and ignore the
         // other details.
         {
@@ -132,16 +246,13 @@ public class JnlpDetailResourceReader implements
                 relJar = baseUrl.toString() + relJar;
             }
 
-            jar = jnlp.getChildResource(Cache.uri(relJar));
+            info.jar = jnlp.getChildResource(Cache.uri(relJar));
             //System.out.println("JNLP jar: baseURL: " + baseUrl +
             //        "; jar file: " + relJar + "; final URL: " +
             //        jar);
 
         }
-        controller.advanceBy(2);
 
-        int type = UNKNOWN;
-        Dimension size = null;
         String mainClass = null;
         {
             NodeList applicationList = top.getElementsByTagName("application-desc");
@@ -155,12 +266,11 @@ public class JnlpDetailResourceReader implements
                                     "too many main class definitions in JNLP file");
                         }
                         mainClass = name;
-                        type = WEBSTART;
+                        info.type = WEBSTART;
                     }
                 }
             }
         }
-        controller.advanceBy(2);
         if (mainClass == null || mainClass.length() <= 0) {
             NodeList appletList = top.getElementsByTagName("applet-desc");
             if (appletList != null) {
@@ -176,14 +286,14 @@ public class JnlpDetailResourceReader implements
                                 "too many main class definitions in JNLP file");
                         }
                         mainClass = name;
-                        type = APPLET;
+                        info.type = APPLET;
 
                         String width = el.getAttribute("width");
                         String height = el.getAttribute("height");
 
                         if (width != null && height != null) {
                             try {
-                                size = new Dimension(
+                                info.size = new Dimension(
                                         Integer.parseInt(width),
                                         Integer.parseInt(height));
                             } catch (NumberFormatException e) {
@@ -198,26 +308,18 @@ public class JnlpDetailResourceReader implements
                 }
             }
         }
-        controller.advanceBy(1);
 
-        boolean readJar = false;
-
-        if (mainClass == null || mainClass.length() <= 0) {
-            // need to load it from the mainifest "Main-Class" value.
-            mainClass = loadManifestMainClass(jar);
-            readJar = true;
-            if (mainClass == null  || mainClass.length() <= 0) {
-                throw new IOException("JNLP file (" + jnlp.getURI() +
-                        ") did not declare the main class, nor did the jar file's manifest (" +
-                        jar.getURI() + ")");
-            }
-            type = WEBSTART;
-            controller.advanceBy(10);
+        if (mainClass != null && mainClass.length() > 0) {
+            info.mainClass = mainClass;
         }
+        return info;
+    }
 
 
+    private GameDetail createDetail(Resource jnlp, GameDescription source,
+            JnlpInfo info, String mainClass, Image icon) throws IOException {
         AbstractGameDetail gd;
-        switch (type) {
+        switch (info.type) {
             case APPLET:
                 gd = new AppletGameDetail(source, jnlp);
                 break;
@@ -230,29 +332,16 @@ public class JnlpDetailResourceReader implements
         }
         gd.setDocumentBase(jnlp);
         gd.setClassName(mainClass);
-        gd.setSize(size);
-
-        // force a reading of the resources
-        if (! readJar) {
-            jar.read().close();
+        gd.setSize(info.size);
+        gd.setJar(info.jar);
+        if (icon != null) {
+            gd.setIcon(icon);
         }
-        gd.setJar(jar);
-        controller.advanceBy(5);
-
-        if (source.getIconResource() != null) {
-            InputStream in = source.getIconResource().read();
-            try {
-                gd.setIcon(ImageIO.read(in));
-            } finally {
-                in.close();
-            }
-        }
-        controller.publish(gd);
-        controller.advanceTo(100);
+        return gd;
     }
 
-    private String loadManifestMainClass(Resource jar) throws IOException {
-        InputStream in = jar.read();
+    private String loadManifestMainClass(byte[] jar) throws IOException {
+        InputStream in = new ByteArrayInputStream(jar);
 
         // Note: JarInputStream usually doesn't work as written.  If the
         // manifest file is not the first or second entry, it will return
@@ -278,11 +367,11 @@ public class JnlpDetailResourceReader implements
     }
 
 
-    private Document loadXml(Resource r) throws IOException {
+    private Document loadXml(Resource r, byte[] data) throws IOException {
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         dbf.setValidating(false);
         dbf.setNamespaceAware(false);
-        InputStream in = r.read();
+        InputStream in = new ByteArrayInputStream(data);
         try {
             DocumentBuilder db = dbf.newDocumentBuilder();
             return db.parse(in);
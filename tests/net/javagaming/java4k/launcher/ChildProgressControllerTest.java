@@ -0,0 +1,200 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher;
+
+import net.javagaming.java4k.launcher.progress.ProgressState;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * How child progress is scaled into the parent's range, and the snapshots
+ * read by the progress panel.
+ *
+ * @author Groboclown
+ */
+public class ChildProgressControllerTest {
+    @Test
+    public void testNestedChildren() {
+        ChildProgressController root = new ChildProgressController(null, 100);
+        root.advance(0, 100, 0);
+
+        // half of the root's range
+        ChildProgressController child = root.createChild(50);
+        child.advance(0, 10, 5);
+        assertState(root, "", false, 0, 100, 25);
+
+        // 4 of the child's 10
+        ChildProgressController grandchild = child.createChild(4);
+        grandchild.advance(0, 2, 1);
+        assertState(child, "", false, 0, 10, 7);
+        assertState(root, "", false, 0, 100, 35);
+
+        // completing takes the parent to the end of the child's range
+        grandchild.completed();
+        assertState(child, "", false, 0, 10, 9);
+        assertState(root, "", false, 0, 100, 45);
+
+        child.completed();
+        assertState(root, "", false, 0, 100, 50);
+
+        root.createChild(50).completed();
+        assertState(root, "", false, 0, 100, 100);
+    }
+
+
+    @Test
+    public void testIndeterminateParent() {
+        ChildProgressController root = new ChildProgressController(null, 100);
+        root.setProgressState(new ProgressState("Loading"));
+
+        // the parent becomes determinate, just big enough for the child
+        ChildProgressController child = root.createChild(30);
+        assertState(root, "Loading", false, 0, 30, 0);
+
+        // an indeterminate child shows through, with its label
+        child.setProgressState(new ProgressState("Fetching"));
+        assertState(root, "Fetching", true, 0, 0, 0);
+
+        // and its label goes away with it
+        child.completed();
+        assertState(root, "Loading", false, 0, 30, 30);
+
+        // the range grows for a child past the end
+        root.createChild(10);
+        assertState(root, "Loading", false, 0, 40, 30);
+    }
+
+
+    @Test
+    public void testAdvanceChildStaysInRange() {
+        ChildProgressController root = new ChildProgressController(null, 100);
+        root.advance(0, 100, 10);
+        root.createChild(20);
+        root.advanceChild("", false, 50);
+        assertState(root, "", false, 0, 100, 30);
+        root.childCompleted("", false, 5);
+        assertState(root, "", false, 0, 100, 30);
+    }
+
+
+    @Test
+    public void testAdvanceBy() {
+        ChildProgressController root = new ChildProgressController(null, 100);
+        assertThat(root.getProgressState(), is(nullValue()));
+        root.advanceBy(5);
+        assertState(root, "", false, 0, 5, 5);
+        root.advance(0, 10, 5);
+        root.advanceBy(3);
+        assertState(root, "", false, 0, 10, 8);
+        // kept within the range
+        root.advanceBy(30);
+        assertState(root, "", false, 0, 10, 10);
+        root.advanceBy(-30);
+        assertState(root, "", false, 0, 10, 0);
+    }
+
+
+    @Test
+    public void testMisuse() {
+        ChildProgressController root = new ChildProgressController(null, 100);
+        root.advance(0, 100, 0);
+        root.createChild(10);
+        try {
+            root.advanceBy(1);
+            fail("advanced with an active child");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            root.createChild(10);
+            fail("created a second child");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        root.childCompleted("", false, 10);
+        try {
+            root.advanceChild("", false, 1);
+            fail("advanced a completed child");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        root.completed();
+        try {
+            root.advanceBy(1);
+            fail("advanced after completion");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testSnapshotsAreConsistent() throws Exception {
+        final ChildProgressController root =
+                new ChildProgressController(null, 100);
+        root.advance(0, 10, 5);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // every state has a range of 10 with the value half way
+                for (int i = 1; i <= 200000; ++i) {
+                    root.advance(i, i + 10, i + 5);
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+        int reads = 0;
+        while (! done.get() || reads == 0) {
+            ProgressState state = root.getProgressState();
+            assertThat(state.getMaximum() - state.getMinimum(), is(10));
+            assertThat(state.getValue() - state.getMinimum(), is(5));
+            ++reads;
+        }
+        writer.join();
+        assertState(root, "", false, 200000, 200010, 200005);
+    }
+
+
+    private static void assertState(ChildProgressController controller,
+            String label, boolean indeterminate, int min, int max,
+            int value) {
+        ProgressState state = controller.getProgressState();
+        assertThat(state.getLabelText(), is(label));
+        assertThat(state.isIndeterminate(), is(indeterminate));
+        assertThat(state.getMinimum(), is(min));
+        assertThat(state.getMaximum(), is(max));
+        assertThat(state.getValue(), is(value));
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The order in which the scheduler hands out work.  The tasks are run one
+ * at a time on the test's thread, so each step is known.
+ *
+ * @author Groboclown
+ */
+public class DownloadSchedulerTest {
+    private final StepExecutor executor = new StepExecutor();
+    private final List<String> ran = new ArrayList<String>();
+    private int pendingChanges = 0;
+
+
+    @Test
+    public void testPriorityOrder() {
+        DownloadScheduler scheduler = scheduler(1, 1);
+        submit(scheduler, "a", WorkPriority.INTERACTIVE, "first");
+        submit(scheduler, "b", WorkPriority.MAINTENANCE, "maintenance");
+        submit(scheduler, "c", WorkPriority.PREFETCH, "prefetch");
+        submit(scheduler, "d", WorkPriority.INTERACTIVE, "interactive");
+        submit(scheduler, "b", WorkPriority.VISIBLE, "visible");
+        assertThat(scheduler.getPending(), is(5));
+
+        runAll();
+        assertThat(ran, is(Arrays.asList("first", "interactive", "visible",
+                "prefetch", "maintenance")));
+        assertThat(scheduler.getPending(), is(0));
+    }
+
+
+    @Test
+    public void testSamePriorityKeepsOrder() {
+        DownloadScheduler scheduler = scheduler(1, 4);
+        for (int i = 0; i < 4; ++i) {
+            submit(scheduler, "a", WorkPriority.PREFETCH, "a" + i);
+        }
+        runAll();
+        assertThat(ran, is(Arrays.asList("a0", "a1", "a2", "a3")));
+    }
+
+
+    @Test
+    public void testPerHostLimit() {
+        DownloadScheduler scheduler = scheduler(4, 2);
+        for (int i = 0; i < 5; ++i) {
+            submit(scheduler, "a", WorkPriority.INTERACTIVE, "a" + i);
+        }
+        // only two of the host's tasks are handed out
+        assertThat(executor.size(), is(2));
+        submit(scheduler, "b", WorkPriority.INTERACTIVE, "b0");
+        assertThat(executor.size(), is(3));
+        assertThat(scheduler.getPending(), is(6));
+
+        // a finished task makes room for one more from its host
+        executor.runNext();
+        assertThat(executor.size(), is(3));
+        assertThat(scheduler.getPending(), is(5));
+        runAll();
+        assertThat(ran, is(Arrays.asList("a0", "a1", "b0", "a2", "a3", "a4")));
+        assertThat(scheduler.getPending(), is(0));
+    }
+
+
+    @Test
+    public void testHostsTakeTurns() {
+        DownloadScheduler scheduler = scheduler(1, 1);
+        submit(scheduler, "a", WorkPriority.VISIBLE, "a1");
+        submit(scheduler, "a", WorkPriority.VISIBLE, "a2");
+        submit(scheduler, "a", WorkPriority.VISIBLE, "a3");
+        submit(scheduler, "b", WorkPriority.VISIBLE, "b1");
+        submit(scheduler, "b", WorkPriority.VISIBLE, "b2");
+        submit(scheduler, "c", WorkPriority.VISIBLE, "c1");
+
+        runAll();
+        assertThat(ran, is(Arrays.asList("a1", "b1", "c1", "a2", "b2", "a3")));
+    }
+
+
+    @Test
+    public void testSuperseded() {
+        DownloadScheduler scheduler = scheduler(1, 1);
+        final List<String> dropped = new ArrayList<String>();
+        submit(scheduler, "a", WorkPriority.INTERACTIVE, "busy");
+        scheduler.submit("b", WorkPriority.VISIBLE, "panel", task("old"),
+                record(dropped, "old"));
+        scheduler.submit("b", WorkPriority.VISIBLE, "other", task("other"),
+                record(dropped, "other"));
+        assertThat(scheduler.getPending(), is(3));
+        int changes = pendingChanges;
+
+        // the newer request takes the older one's place
+        scheduler.submit("c", WorkPriority.VISIBLE, "panel", task("new"),
+                record(dropped, "new"));
+        assertThat(dropped, is(Arrays.asList("old")));
+        assertThat(scheduler.getPending(), is(3));
+        assertThat(pendingChanges, is(changes + 1));
+
+        runAll();
+        assertThat(ran, is(Arrays.asList("busy", "other", "new")));
+        assertThat(dropped, is(Arrays.asList("old")));
+        assertThat(scheduler.getPending(), is(0));
+    }
+
+
+    @Test
+    public void testStartedTaskIsNotSuperseded() {
+        DownloadScheduler scheduler = scheduler(1, 1);
+        final List<String> dropped = new ArrayList<String>();
+        scheduler.submit("a", WorkPriority.VISIBLE, "panel", task("started"),
+                record(dropped, "started"));
+        scheduler.submit("a", WorkPriority.VISIBLE, "panel", task("next"),
+                record(dropped, "next"));
+        assertThat(dropped.isEmpty(), is(true));
+        assertThat(scheduler.getPending(), is(2));
+
+        runAll();
+        assertThat(ran, is(Arrays.asList("started", "next")));
+        assertThat(scheduler.getPending(), is(0));
+    }
+
+
+    private DownloadScheduler scheduler(int maxConcurrent, int maxPerHost) {
+        return new DownloadScheduler("Test", maxConcurrent, maxPerHost,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        ++pendingChanges;
+                    }
+                }, new QueueStats() {
+                    @Override
+                    public void recordQueueWait(String queue, long waitNanos) {
+                        // not measured here
+                    }
+
+                    @Override
+                    public void recordSuperseded() {
+                        // not measured here
+                    }
+                }, executor);
+    }
+
+
+    private void submit(DownloadScheduler scheduler, String host,
+            WorkPriority priority, String name) {
+        scheduler.submit(host, priority, null, task(name), null);
+    }
+
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(name);
+            }
+        };
+    }
+
+
+    private static Runnable record(final List<String> list,
+            final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                list.add(name);
+            }
+        };
+    }
+
+
+    private void runAll() {
+        while (executor.runNext()) {
+            // keep going
+        }
+    }
+
+
+    /**
+     * Keeps the handed out tasks until the test runs them.
+     */
+    private static class StepExecutor extends AbstractExecutorService {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        /**
+         * @return the number of tasks handed out and not yet run.
+         */
+        int size() {
+            return tasks.size();
+        }
+
+        boolean runNext() {
+            if (tasks.isEmpty()) {
+                return false;
+            }
+            tasks.removeFirst().run();
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>(tasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips and damaged files for the binary cache index.
+ *
+ * @author Groboclown
+ */
+public class CacheIndexTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        CacheIndex index = CacheIndex.read(sample().toBuffer(7L, 42));
+
+        assertThat(index.getJournalGeneration(), is(7L));
+        assertThat(index.getLastFileIndex(), is(42));
+        assertThat(index.size(), is(3));
+        checkSample(index);
+    }
+
+
+    @Test
+    public void testFileRoundTrip() throws IOException {
+        File f = dir.newFile("index.7.bin");
+        sample().write(f, 7L, 42);
+        CacheIndex index = CacheIndex.load(f);
+
+        assertThat(index.getJournalGeneration(), is(7L));
+        checkSample(index);
+    }
+
+
+    @Test
+    public void testFindMany() throws IOException {
+        CacheIndex.Writer w = new CacheIndex.Writer();
+        for (int i = 0; i < 1000; ++i) {
+            w.add("http://host" + (i % 7) + "/file" + i, Integer.toHexString(i),
+                    "static", false, Collections.<String>emptyList(),
+                    Collections.<String, String>emptyMap());
+        }
+        CacheIndex index = CacheIndex.read(w.toBuffer(1L, 1000));
+
+        for (int i = 0; i < 1000; ++i) {
+            int entry = index.find("http://host" + (i % 7) + "/file" + i);
+            assertThat(entry >= 0, is(true));
+            assertThat(index.getLocal(entry), is(Integer.toHexString(i)));
+        }
+        assertThat(index.find("http://host0/file1000"), is(-1));
+        assertThat(index.find("http://host1/file0"), is(-1));
+    }
+
+
+    @Test
+    public void testEmpty() throws IOException {
+        CacheIndex index = CacheIndex.read(
+                new CacheIndex.Writer().toBuffer(3L, 0));
+
+        assertThat(index.size(), is(0));
+        assertThat(index.find("http://a/"), is(-1));
+    }
+
+
+    @Test
+    public void testCopyUnmaterialized() throws IOException {
+        CacheIndex index = CacheIndex.read(sample().toBuffer(7L, 42));
+        index.setMaterialized(index.find("http://a.com/list.json"));
+
+        CacheIndex.Writer w = new CacheIndex.Writer();
+        index.copyUnmaterialized(w);
+        CacheIndex copy = CacheIndex.read(w.toBuffer(8L, 42));
+
+        assertThat(copy.size(), is(2));
+        assertThat(copy.find("http://a.com/list.json"), is(-1));
+        int entry = copy.find("http://a.com/game.jnlp");
+        assertThat(copy.getChildren(entry),
+                is(Arrays.asList("http://a.com/game.jar")));
+        assertThat(copy.getAttributes(entry).get("etag"), is("\"x1\""));
+    }
+
+
+    @Test
+    public void testWrongVersion() throws IOException {
+        ByteBuffer buff = sample().toBuffer(7L, 42);
+        buff.putInt(4, CacheIndex.FORMAT_VERSION + 1);
+        assertUnreadable(buff);
+    }
+
+
+    @Test
+    public void testTruncated() throws IOException {
+        ByteBuffer buff = sample().toBuffer(7L, 42);
+        byte[] part = Arrays.copyOf(buff.array(), buff.capacity() - 10);
+        assertUnreadable(ByteBuffer.wrap(part));
+    }
+
+
+    @Test
+    public void testBadTrailer() throws IOException {
+        ByteBuffer buff = sample().toBuffer(7L, 42);
+        buff.putInt(buff.capacity() - 4, 0);
+        assertUnreadable(buff);
+    }
+
+
+    @Test
+    public void testWrongSize() throws IOException {
+        ByteBuffer buff = sample().toBuffer(7L, 42);
+        // a longer file that still ends with the trailer
+        ByteBuffer longer = ByteBuffer.allocate(buff.capacity() + 4);
+        longer.put(buff.array());
+        longer.putInt(buff.capacity(), buff.getInt(buff.capacity() - 4));
+        assertUnreadable(longer);
+    }
+
+
+    @Test
+    public void testPartialFile() throws IOException {
+        File f = dir.newFile("index.7.bin");
+        sample().write(f, 7L, 42);
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        try {
+            CacheIndex.load(f);
+            fail("loaded half an index");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    private static CacheIndex.Writer sample() {
+        CacheIndex.Writer w = new CacheIndex.Writer();
+        Map<String, String> attrs = new HashMap<String, String>();
+        attrs.put("etag", "\"x1\"");
+        w.add("http://a.com/list.json", "1f", "volatile", true,
+                Collections.<String>emptyList(),
+                Collections.<String, String>emptyMap());
+        w.add("http://a.com/game.jnlp", "20", "static", false,
+                Arrays.asList("http://a.com/game.jar"), attrs);
+        w.add("http://b.com/\u00e9t\u00e9.png", "bundled/x.png", "custom",
+                false, Collections.<String>emptyList(),
+                Collections.<String, String>emptyMap());
+        return w;
+    }
+
+
+    private static void checkSample(CacheIndex index) {
+        int list = index.find("http://a.com/list.json");
+        assertThat(index.getURI(list), is("http://a.com/list.json"));
+        assertThat(index.getLocal(list), is("1f"));
+        assertThat(index.getType(list), is("volatile"));
+        assertThat(index.isReload(list), is(true));
+        assertThat(index.getChildren(list), is(Collections.<String>emptyList()));
+
+        int jnlp = index.find("http://a.com/game.jnlp");
+        assertThat(index.getType(jnlp), is("static"));
+        assertThat(index.isReload(jnlp), is(false));
+        List<String> kids = new ArrayList<String>(index.getChildren(jnlp));
+        assertThat(kids, is(Arrays.asList("http://a.com/game.jar")));
+        assertThat(index.getAttributes(jnlp).get("etag"), is("\"x1\""));
+
+        // a local name that isn't a file number, and a type not in the table
+        int png = index.find("http://b.com/\u00e9t\u00e9.png");
+        assertThat(index.getLocal(png), is("bundled/x.png"));
+        assertThat(index.getType(png), is("custom"));
+
+        assertThat(index.find("http://a.com/missing"), is(-1));
+    }
+
+
+    private static void assertUnreadable(ByteBuffer buff) {
+        try {
+            CacheIndex.read(buff);
+            fail("read a damaged index");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
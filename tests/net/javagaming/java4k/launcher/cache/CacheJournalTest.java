@@ -0,0 +1,189 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import net.javagaming.java4k.launcher.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Replaying the cache index journal, including after a crash.
+ *
+ * @author Groboclown
+ */
+public class CacheJournalTest {
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+
+    @Test
+    public void testReplayInOrder() throws IOException {
+        File d = dir.getRoot();
+        CacheJournal journal = new CacheJournal(d, 1L, ignore());
+        journal.append(record("a"));
+        journal.append(record("b"));
+        assertThat(journal.getRecordCount(), is(2));
+        assertThat(journal.roll(), is(2L));
+        assertThat(journal.getRecordCount(), is(0));
+        journal.append(record("c"));
+        journal.close();
+
+        List<String> seen = new ArrayList<String>();
+        assertThat(CacheJournal.replay(d, 1L, collect(seen), ignore()),
+                is(2L));
+        assertThat(seen, is(Arrays.asList("a", "b", "c")));
+
+        // a snapshot that already holds generation 1
+        seen.clear();
+        assertThat(CacheJournal.replay(d, 2L, collect(seen), ignore()),
+                is(2L));
+        assertThat(seen, is(Arrays.asList("c")));
+    }
+
+
+    @Test
+    public void testReplayNothing() throws IOException {
+        List<String> seen = new ArrayList<String>();
+        assertThat(CacheJournal.replay(dir.getRoot(), 5L, collect(seen),
+                ignore()), is(4L));
+        assertThat(seen.isEmpty(), is(true));
+    }
+
+
+    @Test
+    public void testTornRecord() throws IOException {
+        File d = dir.getRoot();
+        CacheJournal journal = new CacheJournal(d, 1L, ignore());
+        journal.append(record("a"));
+        journal.append(record("b"));
+        journal.close();
+        // the launcher died part way through writing the next record
+        FileOutputStream out = new FileOutputStream(
+                new File(d, "index.1.journal"), true);
+        try {
+            out.write("{\"uri\":\"c".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        List<String> seen = new ArrayList<String>();
+        List<String> warnings = new ArrayList<String>();
+        assertThat(CacheJournal.replay(d, 1L, collect(seen),
+                collectWarnings(warnings)), is(1L));
+        assertThat(seen, is(Arrays.asList("a", "b")));
+        assertThat(warnings.size(), is(1));
+    }
+
+
+    @Test
+    public void testAppendAfterTornRecordStartsNewGeneration()
+            throws IOException {
+        File d = dir.getRoot();
+        FileOutputStream out = new FileOutputStream(
+                new File(d, "index.1.journal"));
+        try {
+            out.write("{\"uri\":\"a\"}\n{\"uri\":".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        // the next run continues in a newer generation
+        CacheJournal journal = new CacheJournal(d, 2L, ignore());
+        journal.append(record("b"));
+        journal.close();
+
+        List<String> seen = new ArrayList<String>();
+        CacheJournal.replay(d, 1L, collect(seen), ignore());
+        assertThat(seen, is(Arrays.asList("a", "b")));
+    }
+
+
+    @Test
+    public void testDeleteBefore() throws IOException {
+        File d = dir.getRoot();
+        CacheJournal journal = new CacheJournal(d, 1L, ignore());
+        journal.append(record("a"));
+        journal.roll();
+        journal.append(record("b"));
+        journal.roll();
+        journal.append(record("c"));
+        journal.close();
+
+        journal.deleteBefore(3L);
+        assertThat(new File(d, "index.1.journal").exists(), is(false));
+        assertThat(new File(d, "index.2.journal").exists(), is(false));
+        assertThat(new File(d, "index.3.journal").exists(), is(true));
+
+        List<String> seen = new ArrayList<String>();
+        CacheJournal.replay(d, 1L, collect(seen), ignore());
+        assertThat(seen, is(Arrays.asList("c")));
+    }
+
+
+    private static JSONObject record(String uri) {
+        JSONObject ret = new JSONObject();
+        ret.put("op", CacheJournal.OP_ADD);
+        ret.put("uri", uri);
+        return ret;
+    }
+
+
+    private static CacheJournal.Warnings ignore() {
+        return collectWarnings(new ArrayList<String>());
+    }
+
+
+    private static CacheJournal.Warnings collectWarnings(
+            final List<String> warnings) {
+        return new CacheJournal.Warnings() {
+            @Override
+            public void warn(String message) {
+                warnings.add(message);
+            }
+        };
+    }
+
+
+    private static CacheJournal.RecordHandler collect(final List<String> seen) {
+        return new CacheJournal.RecordHandler() {
+            @Override
+            public void replay(JSONObject record) {
+                seen.add(record.getString("uri"));
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Limits, invalidation and keys of the in-memory cache tier.
+ *
+ * @author Groboclown
+ */
+public class HotTierTest {
+    @Test
+    public void testByteLimitDropsLeastRecentlyUsed() {
+        // 1600 bytes allows entries of up to 100 bytes
+        HotTier tier = new HotTier(1600L, 100);
+        for (int i = 0; i < 16; ++i) {
+            tier.putBytes(uri(i), new byte[100], tier.getGeneration());
+        }
+        assertThat(tier.getByteCount(), is(1600L));
+
+        // reading the first makes the second the oldest
+        assertThat(tier.getBytes(uri(0)).length, is(100));
+        tier.putBytes(uri(16), new byte[100], tier.getGeneration());
+
+        assertThat(tier.getByteCount(), is(1600L));
+        assertThat(tier.getEvictionCount(), is(1L));
+        assertThat(tier.getBytes(uri(1)), is(nullValue()));
+        assertThat(tier.getBytes(uri(0)).length, is(100));
+        assertThat(tier.getBytes(uri(16)).length, is(100));
+    }
+
+
+    @Test
+    public void testEntryLimit() {
+        HotTier tier = new HotTier(1600L, 3);
+        for (int i = 0; i < 5; ++i) {
+            tier.putBytes(uri(i), new byte[10], tier.getGeneration());
+        }
+        assertThat(tier.getEvictionCount(), is(2L));
+        assertThat(tier.getBytes(uri(0)), is(nullValue()));
+        assertThat(tier.getBytes(uri(1)), is(nullValue()));
+        assertThat(tier.getBytes(uri(4)).length, is(10));
+        assertThat(tier.getByteCount(), is(30L));
+    }
+
+
+    @Test
+    public void testTooLarge() {
+        HotTier tier = new HotTier(1600L, 100);
+        assertThat(tier.accepts(100L), is(true));
+        assertThat(tier.accepts(101L), is(false));
+        tier.putBytes(uri(0), new byte[101], tier.getGeneration());
+        assertThat(tier.getBytes(uri(0)), is(nullValue()));
+        assertThat(tier.getByteCount(), is(0L));
+    }
+
+
+    @Test
+    public void testDisabled() {
+        HotTier tier = new HotTier(0L, 100);
+        assertThat(tier.isEnabled(), is(false));
+        tier.putString(uri(0), "UTF-8", "x", tier.getGeneration());
+        assertThat(tier.getString(uri(0), "UTF-8"), is(nullValue()));
+    }
+
+
+    @Test
+    public void testInvalidatedDuringRead() {
+        HotTier tier = new HotTier(1600L, 100);
+        long token = tier.getGeneration();
+        // a new download replaced the file while the old one was read
+        tier.invalidate(uri(0));
+        tier.putBytes(uri(0), new byte[10], token);
+        assertThat(tier.getBytes(uri(0)), is(nullValue()));
+
+        tier.putBytes(uri(0), new byte[10], tier.getGeneration());
+        assertThat(tier.getBytes(uri(0)).length, is(10));
+    }
+
+
+    @Test
+    public void testStringsKeyedByEncoding() {
+        HotTier tier = new HotTier(1600L, 100);
+        tier.putString(uri(0), "UTF-8", "abc", tier.getGeneration());
+        tier.putBytes(uri(0), new byte[3], tier.getGeneration());
+
+        assertThat(tier.getString(uri(0), "UTF-8"), is("abc"));
+        assertThat(tier.getString(uri(0), "ISO-8859-1"), is(nullValue()));
+        assertThat(tier.getBytes(uri(0)).length, is(3));
+        // strings weigh two bytes a character
+        assertThat(tier.getByteCount(), is(9L));
+
+        // invalidating drops every form of the resource
+        tier.invalidate(uri(0));
+        assertThat(tier.getString(uri(0), "UTF-8"), is(nullValue()));
+        assertThat(tier.getBytes(uri(0)), is(nullValue()));
+        assertThat(tier.getByteCount(), is(0L));
+    }
+
+
+    @Test
+    public void testShrink() {
+        HotTier tier = new HotTier(1600L, 100);
+        for (int i = 0; i < 16; ++i) {
+            tier.putBytes(uri(i), new byte[100], tier.getGeneration());
+        }
+        tier.shrink();
+        assertThat(tier.getByteCount(), is(400L));
+        assertThat(tier.getEvictionCount(), is(12L));
+        // the most recently used are the ones kept
+        assertThat(tier.getBytes(uri(15)).length, is(100));
+        assertThat(tier.getBytes(uri(11)), is(nullValue()));
+    }
+
+
+    private static URI uri(int i) {
+        return URI.create("http://example.com/" + i);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * This is free and unencumbered software released into the public domain.
+ *
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ *
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * For more information, please refer to &lt;http://unlicense.org/
+ */
+package net.javagaming.java4k.launcher.cache;
+
+import net.javagaming.java4k.launcher.json.JSONArray;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Matching and rewriting of the URL mapping rules.
+ *
+ * @author Groboclown
+ */
+public class UrlMapTest {
+    @Test
+    public void testExact() throws Exception {
+        UrlMap map = map(
+                "http://www.author.com/game.jar", "https://author.com/game.jar");
+        assertThat(map.getURI("http://www.author.com/game.jar"),
+                is(new URI("https://author.com/game.jar")));
+        // the scheme and host aren't case sensitive; the path is
+        assertThat(map.getURI("HTTP://WWW.Author.com/game.jar"),
+                is(new URI("https://author.com/game.jar")));
+        assertThat(map.getURI("http://www.author.com/Game.jar"),
+                is(new URI("http://www.author.com/Game.jar")));
+        assertThat(map.getURI("http://www.author.com/game.jar2"),
+                is(new URI("http://www.author.com/game.jar2")));
+        assertThat(map.getRedirectedUris().size(), is(1));
+        assertThat(map.getRedirectedUris().iterator().next(),
+                is("http://www.author.com/game.jar"));
+    }
+
+
+    @Test
+    public void testPrefix() throws Exception {
+        UrlMap map = map(
+                "http://author.com/~me/*", "https://new.com/me/*",
+                "http://author.com/~me/old/*", "https://old.com/*",
+                "http://author.com/~me/a.jar", "https://exact.com/a.jar");
+        assertThat(map.getURI("http://author.com/~me/game/a.jar"),
+                is(new URI("https://new.com/me/game/a.jar")));
+        // the longer prefix wins
+        assertThat(map.getURI("http://author.com/~me/old/a.jar"),
+                is(new URI("https://old.com/a.jar")));
+        // and an exact match wins over both
+        assertThat(map.getURI("http://author.com/~me/a.jar"),
+                is(new URI("https://exact.com/a.jar")));
+        assertThat(map.getURI("http://author.com/~you/a.jar"),
+                is(new URI("http://author.com/~you/a.jar")));
+        // prefixes aren't listed as redirected
+        assertThat(map.getRedirectedUris().size(), is(1));
+    }
+
+
+    @Test
+    public void testHostWildcard() throws Exception {
+        UrlMap map = map(
+                "http://*.author.com/*", "https://author.com/*/*",
+                "http://*.games.author.com/play", "https://play.com/*");
+        assertThat(map.getURI("http://www.author.com/g/a.jar"),
+                is(new URI("https://author.com/www/g/a.jar")));
+        assertThat(map.getURI("http://a.b.author.com/x"),
+                is(new URI("https://author.com/a.b/x")));
+        // the most specific domain first
+        assertThat(map.getURI("http://my.games.author.com/play"),
+                is(new URI("https://play.com/my")));
+        assertThat(map.getURI("http://my.games.author.com/other"),
+                is(new URI("https://author.com/my.games/other")));
+        // the bare domain isn't a subdomain of itself
+        assertThat(map.getURI("http://author.com/x"),
+                is(new URI("http://author.com/x")));
+    }
+
+
+    @Test
+    public void testPrefixWinsOverHostWildcard() throws Exception {
+        UrlMap map = map(
+                "http://*.author.com/*", "https://wild.com/*/*",
+                "http://www.author.com/games/*", "https://games.com/*");
+        assertThat(map.getURI("http://www.author.com/games/a.jar"),
+                is(new URI("https://games.com/a.jar")));
+        assertThat(map.getURI("http://www.author.com/other/a.jar"),
+                is(new URI("https://wild.com/www/other/a.jar")));
+    }
+
+
+    @Test
+    public void testWildcardOrder() throws Exception {
+        // each "*" in the target takes the next matched part
+        UrlMap map = map(
+                "http://*.author.com/j4k/*", "https://mirror.com/*?from=*");
+        assertThat(map.getURI("http://notch.author.com/j4k/game.jar"),
+                is(new URI("https://mirror.com/notch?from=game.jar")));
+
+        // extra wildcards in the target are dropped
+        map = map("http://author.com/*", "https://mirror.com/*/*");
+        assertThat(map.getURI("http://author.com/a.jar"),
+                is(new URI("https://mirror.com/a.jar/")));
+    }
+
+
+    @Test
+    public void testOtherHosts() throws Exception {
+        UrlMap map = map(
+                "http://*.author.com/*", "https://wild.com/*/*",
+                "http://author.com/*", "https://prefix.com/*",
+                "http://author.com/a.jar", "https://exact.com/a.jar");
+        // hosts that only start or end like the rule's host don't match
+        assertThat(map.getURI("http://author.com.evil/a.jar"),
+                is(new URI("http://author.com.evil/a.jar")));
+        assertThat(map.getURI("http://www.author.com.evil/a.jar"),
+                is(new URI("http://www.author.com.evil/a.jar")));
+        assertThat(map.getURI("http://evilauthor.com/a.jar"),
+                is(new URI("http://evilauthor.com/a.jar")));
+        assertThat(map.getURI("http://www.evilauthor.com/a.jar"),
+                is(new URI("http://www.evilauthor.com/a.jar")));
+    }
+
+
+    @Test
+    public void testPorts() throws Exception {
+        UrlMap map = map(
+                "http://*.author.com/*", "https://wild.com/*/*",
+                "http://author.com:8080/*", "https://port.com/*",
+                "http://author.com/a.jar", "https://exact.com/a.jar");
+        assertThat(map.getURI("http://author.com:8080/a.jar"),
+                is(new URI("https://port.com/a.jar")));
+        // a port is part of the match, and host wildcards have none
+        assertThat(map.getURI("http://author.com:80/a.jar"),
+                is(new URI("http://author.com:80/a.jar")));
+        assertThat(map.getURI("http://www.author.com:8080/a.jar"),
+                is(new URI("http://www.author.com:8080/a.jar")));
+        assertThat(map.getURI("http", "author.com", 8080, "/b.jar?x=1"),
+                is(new URI("https://port.com/b.jar?x=1")));
+        assertThat(map.getURI("http", "author.com", -1, "/a.jar"),
+                is(new URI("https://exact.com/a.jar")));
+    }
+
+
+    @Test
+    public void testUnsupportedWildcardsIgnored() throws Exception {
+        UrlMap map = map(
+                "http://auth*.com/a.jar", "https://bad.com/",
+                "http://author.com/*/a.jar", "https://bad.com/",
+                "http://author*", "https://bad.com/",
+                "http://*.author.com/a*b", "https://bad.com/",
+                "http://author.com/ok.jar", "https://good.com/ok.jar");
+        assertThat(map.getURI("http://author.com/x/a.jar"),
+                is(new URI("http://author.com/x/a.jar")));
+        assertThat(map.getURI("http://authorx.com/a.jar"),
+                is(new URI("http://authorx.com/a.jar")));
+        assertThat(map.getURI("http://author.com/ok.jar"),
+                is(new URI("https://good.com/ok.jar")));
+    }
+
+
+    @Test
+    public void testExpand() throws Exception {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("base", "http://java4k.com/");
+        props.put("loop", "${base}");
+        assertThat(UrlMap.expand("${base}index.php", props),
+                is("http://java4k.com/index.php"));
+        // values aren't expanded again, and unknown names are kept
+        assertThat(UrlMap.expand("${loop}/${none}/${base", props),
+                is("${base}/${none}/${base"));
+        assertThat(UrlMap.expand("${base}${base}", props),
+                is("http://java4k.com/http://java4k.com/"));
+        assertThat(UrlMap.expand("plain", props), is("plain"));
+
+        JSONArray rules = new JSONArray();
+        rules.put(new JSONArray().put("${base}index.php?gid=1")
+                .put("https://mirror.com/1.jnlp"));
+        UrlMap map = new UrlMap(rules, props);
+        assertThat(map.getURI("http://java4k.com/index.php?gid=1"),
+                is(new URI("https://mirror.com/1.jnlp")));
+    }
+
+
+    @Test
+    public void testPooled() throws Exception {
+        UrlMap map = map("http://author.com/*", "https://mirror.com/*");
+        URI mapped = map.getURI("http://author.com/a.jar");
+        assertThat(map.getURI("http://author.com/a.jar"),
+                sameInstance(mapped));
+        URI plain = map.getURI("http://other.com/a.jar");
+        assertThat(map.getURI("http://other.com/a.jar"), sameInstance(plain));
+        assertThat(map.getURI("http", "other.com", -1, "/a.jar"),
+                sameInstance(plain));
+    }
+
+
+    /**
+     * @param rules pairs of source and target.
+     */
+    private static UrlMap map(String... rules) {
+        JSONArray maps = new JSONArray();
+        for (int i = 0; i < rules.length; i += 2) {
+            maps.put(new JSONArray().put(rules[i]).put(rules[i + 1]));
+        }
+        return new UrlMap(maps, Collections.<String, String>emptyMap());
+    }
+}